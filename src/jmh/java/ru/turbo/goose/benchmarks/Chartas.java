@@ -0,0 +1,50 @@
+package ru.turbo.goose.benchmarks;
+
+import ru.turbo.goose.services.ChartaLockManager;
+import ru.turbo.goose.services.ChartaService;
+import ru.turbo.goose.services.ChartaServiceImpl;
+import ru.turbo.goose.services.RowBandExecutor;
+import ru.turbo.goose.services.SegmentCache;
+import ru.turbo.goose.storages.FileManagerImpl;
+import ru.turbo.goose.storages.StorageFormat;
+import ru.turbo.goose.utils.BmpHeader;
+import ru.turbo.goose.utils.BufferPool;
+import ru.turbo.goose.utils.PathHolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+class Chartas {
+    static int width(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int height(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    static ChartaService service(Path dataDir, StorageFormat format) {
+        PathHolder.setPath(dataDir.toString());
+        return new ChartaServiceImpl(new FileManagerImpl(format, 0), new ChartaLockManager(), new RowBandExecutor(),
+                                     new SegmentCache(0), new BufferPool());
+    }
+
+    static byte[] randomBmp(int width, int height, long seed) {
+        BmpHeader header = BmpHeader.bottomUp(width, height);
+        byte[] bmp = new byte[Math.toIntExact(header.getFileSize())];
+        new Random(seed).nextBytes(bmp);
+        header.write(ByteBuffer.wrap(bmp));
+        return bmp;
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.turbo.goose.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.turbo.goose.exceptions.ServiceException;
+import ru.turbo.goose.services.ChartaService;
+import ru.turbo.goose.storages.StorageFormat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CreateBenchmark {
+    @Param({"1000x1000", "5000x5000", "20000x50000"})
+    public String chartaSize;
+
+    @Param({"BMP", "TILED"})
+    public StorageFormat format;
+
+    Path dataDir;
+    ChartaService service;
+    final Queue<Integer> created = new ConcurrentLinkedQueue<>();
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        dataDir = Files.createTempDirectory("charta-bench");
+        service = Chartas.service(dataDir, format);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCreated() throws ServiceException {
+        for (Integer id = created.poll(); id != null; id = created.poll()) {
+            service.deleteCharta(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        Chartas.deleteRecursively(dataDir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int createCharta() throws ServiceException {
+        return remember(service.createCharta(Chartas.width(chartaSize), Chartas.height(chartaSize)));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int createChartaConcurrently() throws ServiceException {
+        return remember(service.createCharta(Chartas.width(chartaSize), Chartas.height(chartaSize)));
+    }
+
+    private int remember(int id) {
+        created.add(id);
+        return id;
+    }
+}
@@ -0,0 +1,121 @@
+package ru.turbo.goose.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import ru.turbo.goose.exceptions.ServiceException;
+import ru.turbo.goose.services.ChartaService;
+import ru.turbo.goose.storages.StorageFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SegmentBenchmark {
+    public enum Overlap {
+        DISJOINT,
+        OVERLAPPING
+    }
+
+    @Param({"1000x1000", "5000x5000", "20000x50000"})
+    public String chartaSize;
+
+    @Param({"100x100", "1000x1000"})
+    public String fragmentSize;
+
+    @Param({"DISJOINT", "OVERLAPPING"})
+    public Overlap overlap;
+
+    @Param({"BMP", "TILED"})
+    public StorageFormat format;
+
+    Path dataDir;
+    ChartaService service;
+    int id;
+
+    @Setup(Level.Trial)
+    public void createCharta() throws IOException, ServiceException {
+        dataDir = Files.createTempDirectory("charta-bench");
+        service = Chartas.service(dataDir, format);
+        id = service.createCharta(Chartas.width(chartaSize), Chartas.height(chartaSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCharta() throws IOException {
+        Chartas.deleteRecursively(dataDir);
+    }
+
+    @State(Scope.Thread)
+    public static class Fragment {
+        int width;
+        int height;
+        int chartaWidth;
+        int chartaHeight;
+        Overlap overlap;
+        byte[] bmp;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void prepare(SegmentBenchmark benchmark, ThreadParams threadParams) {
+            width = Chartas.width(benchmark.fragmentSize);
+            height = Chartas.height(benchmark.fragmentSize);
+            chartaWidth = Chartas.width(benchmark.chartaSize);
+            chartaHeight = Chartas.height(benchmark.chartaSize);
+            overlap = benchmark.overlap;
+            bmp = Chartas.randomBmp(width, height, threadParams.getThreadIndex());
+            random = new SplittableRandom(threadParams.getThreadIndex());
+        }
+
+        int x() {
+            return overlap == Overlap.OVERLAPPING ? chartaWidth / 3 : random.nextInt(Math.max(1, chartaWidth - width));
+        }
+
+        int y() {
+            return overlap == Overlap.OVERLAPPING ? chartaHeight / 3 : random.nextInt(Math.max(1, chartaHeight - height));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void updateSegment(Fragment fragment) throws ServiceException {
+        update(fragment);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void updateSegmentConcurrently(Fragment fragment) throws ServiceException {
+        update(fragment);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void getSegment(Fragment fragment) throws ServiceException {
+        get(fragment);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void getSegmentConcurrently(Fragment fragment) throws ServiceException {
+        get(fragment);
+    }
+
+    private void update(Fragment fragment) throws ServiceException {
+        service.updateSegment(id, fragment.x(), fragment.y(), fragment.width, fragment.height,
+                              new ByteArrayInputStream(fragment.bmp));
+    }
+
+    private void get(Fragment fragment) throws ServiceException {
+        service.getSegment(id, fragment.x(), fragment.y(), fragment.width, fragment.height,
+                           OutputStream.nullOutputStream());
+    }
+}
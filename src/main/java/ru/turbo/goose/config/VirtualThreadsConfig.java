@@ -0,0 +1,47 @@
+package ru.turbo.goose.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PreDestroy;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs every Tomcat request on its own virtual thread, so blocked file I/O does not hold an OS thread.
+// Virtual threads need Java 21; the build targets 17, hence the reflective lookup.
+// A virtual thread blocked inside a synchronized block pins its carrier, so code that does file I/O under
+// a lock uses ReentrantLock rather than a monitor.
+@Configuration
+@ConditionalOnProperty(name = "chartographer.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadsConfig {
+    private ExecutorService executor;
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadsCustomizer() {
+        executor = newVirtualThreadPerTaskExecutor();
+        return factory -> factory.addProtocolHandlerCustomizers(protocol -> protocol.setExecutor(executor));
+    }
+
+    // Tomcat leaves an executor it was handed alone; it has stopped accepting requests by the time beans are destroyed
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException exc) {
+            throw new IllegalStateException("chartographer.virtual-threads.enabled requires Java 21 or newer, "
+                                            + "running on " + Runtime.version(), exc);
+        } catch (IllegalAccessException | InvocationTargetException exc) {
+            throw new IllegalStateException("Cannot create virtual thread executor", exc);
+        }
+    }
+}
@@ -1,17 +1,36 @@
 package ru.turbo.goose.controllers;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import ru.turbo.goose.exceptions.ChartaNotExistsException;
 import ru.turbo.goose.exceptions.ImagesDoNotIntersectException;
 import ru.turbo.goose.exceptions.ServiceException;
 import ru.turbo.goose.exceptions.ValidationException;
 import ru.turbo.goose.services.ChartaService;
+import ru.turbo.goose.utils.BmpHeader;
+import ru.turbo.goose.utils.ImageFormat;
+
+import javax.servlet.http.HttpServletResponse;
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 @RestController
 public class ChartaController {
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
     private final ChartaService service;
 
     @Autowired
@@ -36,7 +55,7 @@ public class ChartaController {
                                        @RequestParam int y,
                                        @RequestParam int width,
                                        @RequestParam int height,
-                                       @RequestBody byte[] data) {
+                                       InputStream data) {
         try {
             service.updateSegment(id, x, y, width, height, data);
             return ResponseEntity.ok().build();
@@ -49,15 +68,12 @@ public class ChartaController {
         }
     }
 
-    @GetMapping(path = "chartas/{id}", produces = "image/bmp")
-    public ResponseEntity<byte[]> get(@PathVariable int id,
-                                           @RequestParam int x,
-                                           @RequestParam int y,
-                                           @RequestParam int width,
-                                           @RequestParam int height) {
+    @PostMapping("chartas/{id}/fragments")
+    public ResponseEntity<Void> updateBatch(@PathVariable int id,
+                                            InputStream data) {
         try {
-            byte[] data = service.getSegment(id, x, y, width, height);
-            return ResponseEntity.ok().body(data);
+            service.updateSegments(id, data);
+            return ResponseEntity.ok().build();
         } catch (ValidationException | ImagesDoNotIntersectException exc) {
             return ResponseEntity.badRequest().build();
         } catch (ChartaNotExistsException exc) {
@@ -67,6 +83,186 @@ public class ChartaController {
         }
     }
 
+    @GetMapping(path = "chartas/{id}", produces = {"image/bmp", "image/png"})
+    public void get(@PathVariable int id,
+                    @RequestParam int x,
+                    @RequestParam int y,
+                    @RequestParam int width,
+                    @RequestParam int height,
+                    @RequestParam(defaultValue = "0") int level,
+                    @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                    @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                    WebRequest request,
+                    HttpServletResponse response) {
+        Deflater deflater = null;
+        try {
+            ImageFormat format = negotiateFormat(accept);
+            String coding = negotiateCoding(acceptEncoding);
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING);
+            // each representation gets its own strong tag, so the coding is part of it
+            String tag = service.getSegmentTag(id, x, y, width, height, level, format);
+            if (request.checkNotModified("\"" + tag + (coding != null ? "-" + coding : "") + "\"")) {
+                return;
+            }
+            response.setContentType(format.getMediaType());
+            if (coding != null) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, coding);
+            } else if (format == ImageFormat.BMP && width > 0 && height > 0) {
+                response.setContentLengthLong(BmpHeader.bottomUp(width, height).getFileSize());
+            }
+            OutputStream out = response.getOutputStream();
+            DeflaterOutputStream compressed = null;
+            if (coding != null) {
+                // gzip frames raw deflate data itself, while the deflate coding is the zlib format
+                deflater = newDeflater(GZIP.equals(coding));
+                compressed = compress(out, coding, deflater);
+                out = compressed;
+            }
+            service.getSegment(id, x, y, width, height, level, format, out);
+            if (compressed != null) {
+                compressed.finish();
+            }
+        } catch (ValidationException | ImagesDoNotIntersectException exc) {
+            fail(response, HttpStatus.BAD_REQUEST);
+        } catch (ChartaNotExistsException exc) {
+            fail(response, HttpStatus.NOT_FOUND);
+        } catch (ServiceException | IOException exc) {
+            fail(response, HttpStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            // the compressing stream is not closed, as that would close the servlet stream too,
+            // so the native zlib state is released here, whether or not the segment was written
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    @GetMapping(path = "chartas/{id}/segments", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void getBatch(@PathVariable int id,
+                         @RequestParam(defaultValue = "0") int level,
+                         WebRequest request,
+                         HttpServletResponse response) {
+        try {
+            // read raw: a single region bound to a list would be split at its commas
+            String[] regions = request.getParameterValues("region");
+            if (regions == null) {
+                throw new ValidationException("No regions requested");
+            }
+            List<Rectangle> rectangles = new ArrayList<>();
+            for (String region : regions) {
+                rectangles.add(parseRegion(region));
+            }
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            service.getSegments(id, rectangles, level, response.getOutputStream());
+        } catch (ValidationException | ImagesDoNotIntersectException exc) {
+            fail(response, HttpStatus.BAD_REQUEST);
+        } catch (ChartaNotExistsException exc) {
+            fail(response, HttpStatus.NOT_FOUND);
+        } catch (ServiceException | IOException exc) {
+            fail(response, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    // x,y,width,height
+    private static Rectangle parseRegion(String region) throws ValidationException {
+        String[] parts = region.split(",");
+        if (parts.length != 4) {
+            throw new ValidationException("Region must be x,y,width,height: " + region);
+        }
+        try {
+            return new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                                 Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+        } catch (NumberFormatException exc) {
+            throw new ValidationException("Region must be x,y,width,height: " + region);
+        }
+    }
+
+    private ImageFormat negotiateFormat(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return ImageFormat.BMP;
+        }
+        List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() == 0) {
+                continue;
+            }
+            for (ImageFormat format : ImageFormat.values()) {
+                MediaType formatType = MediaType.parseMediaType(format.getMediaType());
+                if (mediaType.includes(formatType) && isAcceptable(formatType, mediaTypes)) {
+                    return format;
+                }
+            }
+        }
+        return ImageFormat.BMP;
+    }
+
+    // the most specific range that matches decides, so image/png;q=0 refuses PNG even under */*
+    private static boolean isAcceptable(MediaType formatType, List<MediaType> sortedMediaTypes) {
+        for (MediaType mediaType : sortedMediaTypes) {
+            if (mediaType.includes(formatType)) {
+                return mediaType.getQualityValue() > 0;
+            }
+        }
+        return false;
+    }
+
+    private String negotiateCoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String best = null;
+        double bestQuality = 0;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (!GZIP.equals(coding) && !DEFLATE.equals(coding)) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException exc) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (quality > bestQuality || quality == bestQuality && quality > 0 && GZIP.equals(coding)) {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    // segments are produced on the fly, so trade ratio for throughput
+    Deflater newDeflater(boolean nowrap) {
+        return new Deflater(Deflater.BEST_SPEED, nowrap);
+    }
+
+    private static DeflaterOutputStream compress(OutputStream out, String coding, Deflater deflater)
+            throws IOException {
+        if (DEFLATE.equals(coding)) {
+            return new DeflaterOutputStream(out, deflater, COMPRESSION_BUFFER_SIZE);
+        }
+        return new GZIPOutputStream(out, COMPRESSION_BUFFER_SIZE) {
+            {
+                def.end();
+                def = deflater;
+            }
+        };
+    }
+
+    private void fail(HttpServletResponse response, HttpStatus status) {
+        if (!response.isCommitted()) {
+            response.reset();
+            response.setStatus(status.value());
+        }
+    }
+
     @DeleteMapping("chartas/{id}")
     public ResponseEntity<Void> delete(@PathVariable int id) {
         try {
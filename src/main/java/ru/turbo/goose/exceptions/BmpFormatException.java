@@ -0,0 +1,20 @@
+package ru.turbo.goose.exceptions;
+
+import java.io.IOException;
+
+public class BmpFormatException extends IOException {
+    public BmpFormatException() {
+    }
+
+    public BmpFormatException(String message) {
+        super(message);
+    }
+
+    public BmpFormatException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public BmpFormatException(Throwable cause) {
+        super(cause);
+    }
+}
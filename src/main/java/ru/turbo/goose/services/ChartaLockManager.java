@@ -0,0 +1,96 @@
+package ru.turbo.goose.services;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+@Component
+public class ChartaLockManager {
+    static final int BAND_HEIGHT = 128;
+    static final int DEFAULT_STRIPES = 1024;
+    private static final Timer READ_WAIT_TIMER = waitTimer("read");
+    private static final Timer WRITE_WAIT_TIMER = waitTimer("write");
+    private static final Timer DELETE_WAIT_TIMER = waitTimer("charta");
+    private final ReadWriteLock[] chartaLocks;
+    private final ReadWriteLock[] bandLocks;
+
+    public ChartaLockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    ChartaLockManager(int stripes) {
+        chartaLocks = new ReadWriteLock[stripes];
+        bandLocks = new ReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            chartaLocks[i] = new ReentrantReadWriteLock(true);
+            bandLocks[i] = new ReentrantReadWriteLock(true);
+        }
+    }
+
+    public RowLock lockRowsForRead(int id, int fromRow, int toRow) {
+        return lockRows(id, fromRow, toRow, false);
+    }
+
+    public RowLock lockRowsForWrite(int id, int fromRow, int toRow) {
+        return lockRows(id, fromRow, toRow, true);
+    }
+
+    public RowLock lockCharta(int id) {
+        Timer.Sample wait = Timer.start();
+        RowLock lock = new RowLock();
+        lock.acquire(chartaLocks[stripe(id, 0)].writeLock());
+        wait.stop(DELETE_WAIT_TIMER);
+        return lock;
+    }
+
+    private RowLock lockRows(int id, int fromRow, int toRow, boolean exclusive) {
+        Timer.Sample wait = Timer.start();
+        RowLock lock = new RowLock();
+        lock.acquire(chartaLocks[stripe(id, 0)].readLock());
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int band = fromRow / BAND_HEIGHT; band <= (toRow - 1) / BAND_HEIGHT; band++) {
+            stripes.add(stripe(id, band));
+        }
+        for (int stripe : stripes) {
+            ReadWriteLock bandLock = bandLocks[stripe];
+            lock.acquire(exclusive ? bandLock.writeLock() : bandLock.readLock());
+        }
+        wait.stop(exclusive ? WRITE_WAIT_TIMER : READ_WAIT_TIMER);
+        return lock;
+    }
+
+    private static Timer waitTimer(String mode) {
+        return Timer.builder("charta.lock.wait")
+                    .tag("mode", mode)
+                    .publishPercentileHistogram()
+                    .register(Metrics.globalRegistry);
+    }
+
+    private int stripe(int id, int band) {
+        return Math.floorMod(id * 0x9E3779B9 + band, bandLocks.length);
+    }
+
+    public static class RowLock implements AutoCloseable {
+        private final List<Lock> locks = new ArrayList<>();
+
+        private void acquire(Lock lock) {
+            lock.lock();
+            locks.add(lock);
+        }
+
+        @Override
+        public void close() {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+            locks.clear();
+        }
+    }
+}
@@ -1,10 +1,41 @@
 package ru.turbo.goose.services;
 
 import ru.turbo.goose.exceptions.ServiceException;
+import ru.turbo.goose.utils.ImageFormat;
+
+import java.awt.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 public interface ChartaService {
     int createCharta(int width, int height) throws ServiceException;
-    byte[] getSegment(int id, int x, int y, int w, int h) throws ServiceException;
-    void updateSegment(int id, int x, int y, int w, int h, byte[] data) throws ServiceException;
+    void getSegment(int id, int x, int y, int w, int h, int level, ImageFormat format, OutputStream out)
+            throws ServiceException;
+    void getSegments(int id, List<Rectangle> regions, int level, OutputStream out) throws ServiceException;
+    String getSegmentTag(int id, int x, int y, int w, int h, int level, ImageFormat format) throws ServiceException;
+    void updateSegment(int id, int x, int y, int w, int h, InputStream data) throws ServiceException;
+    void updateSegments(int id, InputStream batch) throws ServiceException;
     void deleteCharta(int id) throws ServiceException;
+
+    default void getSegment(int id, int x, int y, int w, int h, int level, OutputStream out)
+            throws ServiceException {
+        getSegment(id, x, y, w, h, level, ImageFormat.BMP, out);
+    }
+
+    default void getSegment(int id, int x, int y, int w, int h, OutputStream out) throws ServiceException {
+        getSegment(id, x, y, w, h, 0, out);
+    }
+
+    default byte[] getSegment(int id, int x, int y, int w, int h) throws ServiceException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getSegment(id, x, y, w, h, out);
+        return out.toByteArray();
+    }
+
+    default void updateSegment(int id, int x, int y, int w, int h, byte[] data) throws ServiceException {
+        updateSegment(id, x, y, w, h, new ByteArrayInputStream(data));
+    }
 }
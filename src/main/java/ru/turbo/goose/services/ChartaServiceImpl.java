@@ -1,131 +1,643 @@
 package ru.turbo.goose.services;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import ru.turbo.goose.exceptions.BmpFormatException;
 import ru.turbo.goose.exceptions.ChartaNotExistsException;
 import ru.turbo.goose.exceptions.ImagesDoNotIntersectException;
 import ru.turbo.goose.exceptions.ServiceException;
 import ru.turbo.goose.exceptions.ValidationException;
+import ru.turbo.goose.storages.Charta;
+import ru.turbo.goose.storages.ChartaMetadata;
 import ru.turbo.goose.storages.FileManager;
+import ru.turbo.goose.utils.BmpHeader;
+import ru.turbo.goose.utils.BmpRowReader;
 import ru.turbo.goose.utils.BoundaryChecker;
-import ru.turbo.goose.utils.ImageFormatConverter;
+import ru.turbo.goose.utils.BufferPool;
+import ru.turbo.goose.utils.FragmentBatchReader;
+import ru.turbo.goose.utils.ImageEncoder;
+import ru.turbo.goose.utils.ImageFormat;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ChartaServiceImpl implements ChartaService {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int PARALLEL_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final Timer GET_METADATA_TIMER = stageTimer("get", "metadata");
+    private static final Timer GET_TRANSFER_TIMER = stageTimer("get", "transfer");
+    private static final Timer MULTI_TRANSFER_TIMER = stageTimer("multi", "transfer");
+    private static final Timer UPDATE_METADATA_TIMER = stageTimer("update", "metadata");
+    private static final Timer UPDATE_DECODE_TIMER = stageTimer("update", "decode");
+    private static final Timer UPDATE_TRANSFER_TIMER = stageTimer("update", "transfer");
+    private static final Timer BATCH_DECODE_TIMER = stageTimer("batch", "decode");
+    private static final Timer BATCH_TRANSFER_TIMER = stageTimer("batch", "transfer");
+    private static final DistributionSummary READ_BYTES = transferredBytes("get");
+    private static final DistributionSummary MULTI_READ_BYTES = transferredBytes("multi");
+    private static final DistributionSummary WRITTEN_BYTES = transferredBytes("update");
+    private static final DistributionSummary BATCH_WRITTEN_BYTES = transferredBytes("batch");
+    static final long MAX_BATCH_PIXEL_BYTES = 256L * 1024 * 1024;
     private final FileManager fileManager;
+    private final ChartaLockManager lockManager;
+    private final RowBandExecutor executor;
+    private final SegmentCache segmentCache;
+    private final BufferPool bufferPool;
+    // versions restart with the process, so tags handed out by an earlier run must never match
+    private final long epoch = System.currentTimeMillis();
 
     @Autowired
-    public ChartaServiceImpl(FileManager fileManager) {
+    public ChartaServiceImpl(FileManager fileManager, ChartaLockManager lockManager, RowBandExecutor executor,
+                             SegmentCache segmentCache, BufferPool bufferPool) {
         this.fileManager = fileManager;
+        this.lockManager = lockManager;
+        this.executor = executor;
+        this.segmentCache = segmentCache;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     public int createCharta(int width, int height) throws ServiceException {
         validateWidthAndHeight(width, height);
         try {
-            int id = fileManager.create();
-            File imageFile = fileManager.get(id);
-            ImageIO.write(getBlackImage(width, height), "bmp", imageFile);
-            return id;
+            return fileManager.create(width, height);
         } catch (IOException exc) {
             throw new ServiceException(exc);
         }
     }
 
-    private BufferedImage getBlackImage(int w, int h) {
-        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = image.createGraphics();
-        graphics.setColor(Color.BLACK);
-        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
-        return image;
+    @Override
+    public void getSegment(int id, int x, int y, int w, int h, int level, ImageFormat format, OutputStream out)
+            throws ServiceException {
+        validateWidthAndHeight(w, h);
+        validateIdExistence(id);
+        try {
+            Timer.Sample stage = Timer.start();
+            ChartaMetadata metadata = fileManager.getMetadata(id);
+            stage.stop(GET_METADATA_TIMER);
+            Rectangle interImgArea = intersectLevel(id, metadata, level, x, y, w, h);
+            long size = (long) w * h * BmpHeader.BYTES_PER_PIXEL;
+            if (!segmentCache.accepts(size)) {
+                renderSegment(id, x, y, w, h, level, format, metadata, interImgArea, out);
+                return;
+            }
+            Rectangle region = toLevelZero(metadata, level, interImgArea);
+            long version = fileManager.getVersion(id, region.x, region.y, region.width, region.height);
+            SegmentCache.Key key = new SegmentCache.Key(id, x, y, w, h, level, format);
+            byte[] data = segmentCache.get(key, version, region, () -> {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size + BmpHeader.SIZE);
+                try {
+                    renderSegment(id, x, y, w, h, level, format, metadata, interImgArea, buffer);
+                } catch (IOException exc) {
+                    throw new ServiceException(exc);
+                }
+                return buffer.toByteArray();
+            });
+            out.write(data);
+            out.flush();
+        } catch (IOException exc) {
+            throw new ServiceException(exc);
+        }
+    }
+
+    private void renderSegment(int id, int x, int y, int w, int h, int level, ImageFormat format,
+                               ChartaMetadata metadata, Rectangle interImgArea, OutputStream out)
+            throws IOException {
+        Rectangle interSegArea = BoundaryChecker.intersectInSegmentCoords(metadata.getWidth(level),
+                                                                          metadata.getHeight(level), x, y, w, h);
+        int fromRow = interImgArea.y << level;
+        int toRow = (int) Math.min(metadata.getHeight(), (long) (interImgArea.y + interImgArea.height) << level);
+        int spanOffset = interSegArea.x * BmpHeader.BYTES_PER_PIXEL;
+        int spanLength = interImgArea.width * BmpHeader.BYTES_PER_PIXEL;
+        int bufferSize = executor.isParallel((long) spanLength * interImgArea.height) ? PARALLEL_BUFFER_SIZE
+                                                                                      : OUTPUT_BUFFER_SIZE;
+        Timer.Sample stage = Timer.start();
+        try (ImageEncoder encoder = format.newEncoder(w, h, out, bufferPool)) {
+            int stride = encoder.getRowStride();
+            boolean bottomUp = encoder.isBottomUp();
+            int rowsPerBatch = Math.max(1, bufferSize / stride);
+            try (ChartaLockManager.RowLock lock = lockManager.lockRowsForRead(id, fromRow, toRow);
+                 Charta charta = fileManager.openLevel(id, level);
+                 BufferPool.Lease buffer = bufferPool.acquire(rowsPerBatch * stride)) {
+                byte[] rows = buffer.array();
+                Arrays.fill(rows, 0, rowsPerBatch * stride, (byte) 0);
+                for (int done = 0; done < h; done += rowsPerBatch) {
+                    int first = bottomUp ? h - 1 - done : done;
+                    int count = Math.min(rowsPerBatch, h - done);
+                    // batch slot k holds segment row first - k for bottom-up encoders and first + k otherwise
+                    executor.forEachBand(0, count, spanLength, (from, to) -> {
+                        for (int k = from; k < to; k++) {
+                            int j = bottomUp ? first - k : first + k;
+                            if (j >= interSegArea.y && j < interSegArea.y + interSegArea.height) {
+                                charta.readRow(interImgArea.x, j - interSegArea.y + interImgArea.y,
+                                               ByteBuffer.wrap(rows, k * stride + spanOffset, spanLength));
+                            }
+                        }
+                    });
+                    encoder.writeRows(rows, count);
+                    Arrays.fill(rows, 0, count * stride, (byte) 0);
+                }
+                encoder.finish();
+            }
+        }
+        stage.stop(GET_TRANSFER_TIMER);
+        READ_BYTES.record((double) spanLength * interImgArea.height);
     }
 
     @Override
-    public byte[] getSegment(int id, int x, int y, int w, int h) throws ServiceException {
+    public void getSegments(int id, List<Rectangle> regions, int level, OutputStream out) throws ServiceException {
+        if (regions.isEmpty()) {
+            throw new ValidationException("No regions requested");
+        }
+        for (Rectangle region : regions) {
+            validateWidthAndHeight(region.width, region.height);
+        }
+        validateIdExistence(id);
+        List<PendingWindow> windows = new ArrayList<>();
+        try {
+            ChartaMetadata metadata = fileManager.getMetadata(id);
+            long responseBytes = 0;
+            for (Rectangle region : regions) {
+                Rectangle interImgArea = intersectLevel(id, metadata, level, region.x, region.y,
+                                                        region.width, region.height);
+                responseBytes += ((region.width * (long) BmpHeader.BYTES_PER_PIXEL + 3) & ~3L) * region.height;
+                if (responseBytes > MAX_BATCH_PIXEL_BYTES) {
+                    throw new ValidationException("Regions exceed " + MAX_BATCH_PIXEL_BYTES + " bytes of pixel data");
+                }
+                Rectangle interSegArea = BoundaryChecker.intersectInSegmentCoords(
+                        metadata.getWidth(level), metadata.getHeight(level),
+                        region.x, region.y, region.width, region.height);
+                windows.add(new PendingWindow(region, interImgArea, interSegArea));
+            }
+            Timer.Sample stage = Timer.start();
+            long read = streamWindows(id, level, metadata, windows, out);
+            stage.stop(MULTI_TRANSFER_TIMER);
+            MULTI_READ_BYTES.record(read);
+        } catch (IOException exc) {
+            throw new ServiceException(exc);
+        } finally {
+            for (PendingWindow window : windows) {
+                window.release();
+            }
+        }
+    }
+
+    // Sweeps the rows in file order: from the bottom window up for bottom-up BMPs, pyramid levels included,
+    // and from the top window down otherwise. Each row is read once per run of overlapping or touching windows
+    // and copied into all of them; a window is written out as soon as its last row is in.
+    private long streamWindows(int id, int level, ChartaMetadata metadata, List<PendingWindow> windows,
+                               OutputStream out) throws IOException {
+        boolean bottomUp = level > 0 || metadata.isBottomUp();
+        int step = bottomUp ? -1 : 1;
+        windows.sort(Comparator.comparingInt((PendingWindow window) -> step * window.firstRow(bottomUp))
+                               .thenComparingInt(window -> window.area.x));
+        int fromRow = Integer.MAX_VALUE;
+        int toRow = 0;
+        for (PendingWindow window : windows) {
+            fromRow = Math.min(fromRow, window.area.y);
+            toRow = Math.max(toRow, window.area.y + window.area.height);
+        }
+        long read = 0;
+        try (ChartaLockManager.RowLock lock = lockManager.lockRowsForRead(
+                     id, fromRow << level, (int) Math.min(metadata.getHeight(), (long) toRow << level));
+             Charta charta = fileManager.openLevel(id, level);
+             BufferPool.Lease buffer = bufferPool.acquire(metadata.getWidth(level) * BmpHeader.BYTES_PER_PIXEL)) {
+            byte[] row = buffer.array();
+            List<PendingWindow> active = new ArrayList<>();
+            int next = 0;
+            int chartaY = windows.get(0).firstRow(bottomUp);
+            while (next < windows.size() || !active.isEmpty()) {
+                if (active.isEmpty()) {
+                    chartaY = windows.get(next).firstRow(bottomUp);
+                }
+                boolean added = false;
+                while (next < windows.size() && windows.get(next).firstRow(bottomUp) == chartaY) {
+                    PendingWindow window = windows.get(next++);
+                    window.allocate(bufferPool);
+                    active.add(window);
+                    added = true;
+                }
+                if (added) {
+                    active.sort(Comparator.comparingInt(window -> window.area.x));
+                }
+                for (int first = 0; first < active.size(); ) {
+                    int fromX = active.get(first).area.x;
+                    int toX = fromX + active.get(first).area.width;
+                    int last = first + 1;
+                    while (last < active.size() && active.get(last).area.x <= toX) {
+                        toX = Math.max(toX, active.get(last).area.x + active.get(last).area.width);
+                        last++;
+                    }
+                    int spanLength = (toX - fromX) * BmpHeader.BYTES_PER_PIXEL;
+                    charta.readRow(fromX, chartaY, ByteBuffer.wrap(row, 0, spanLength));
+                    read += spanLength;
+                    for (int k = first; k < last; k++) {
+                        active.get(k).copyRow(chartaY, row, fromX);
+                    }
+                    first = last;
+                }
+                chartaY += step;
+                for (Iterator<PendingWindow> it = active.iterator(); it.hasNext(); ) {
+                    PendingWindow window = it.next();
+                    if (window.endRow(bottomUp) == chartaY) {
+                        window.writeTo(out);
+                        window.release();
+                        it.remove();
+                    }
+                }
+            }
+            out.flush();
+        }
+        return read;
+    }
+
+    @Override
+    public String getSegmentTag(int id, int x, int y, int w, int h, int level, ImageFormat format)
+            throws ServiceException {
         validateWidthAndHeight(w, h);
         validateIdExistence(id);
-        try (ImageInputStream input = ImageIO.createImageInputStream(fileManager.get(id))) {
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
-            if (!readers.hasNext()) {
-                throw new ServiceException("No appropriate reader found");
-            }
-            ImageReader reader = readers.next();
-            reader.setInput(input);
-            int imageWidth = reader.getWidth(0);
-            int imageHeight = reader.getHeight(0);
-            Rectangle croppedSegment = BoundaryChecker.intersectInImageCoords(imageWidth, imageHeight, x, y, w, h);
-            if (croppedSegment.isEmpty()) {
-                throw new ImagesDoNotIntersectException("Regions are not intersecting");
-            }
-            ImageReadParam param = reader.getDefaultReadParam();
-            param.setSourceRegion(croppedSegment);
-            BufferedImage segment = reader.read(0, param);
-
-            BufferedImage fullSegment = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            Graphics2D graphics = fullSegment.createGraphics();
-            graphics.setColor(Color.BLACK);
-            graphics.fillRect(0, 0, fullSegment.getWidth(), fullSegment.getHeight());
-            Rectangle interSeg = BoundaryChecker.intersectInSegmentCoords(imageWidth, imageHeight, x, y, w, h);
-            graphics.drawImage(segment, null, interSeg.x, interSeg.y);
-
-            return ImageFormatConverter.bufferedBmpImageToByteArray(fullSegment);
+        try {
+            ChartaMetadata metadata = fileManager.getMetadata(id);
+            Rectangle region = toLevelZero(metadata, level, intersectLevel(id, metadata, level, x, y, w, h));
+            long version = fileManager.getVersion(id, region.x, region.y, region.width, region.height);
+            return Long.toHexString(epoch) + "-" + Long.toHexString(version) + "-" + format.name().toLowerCase();
         } catch (IOException exc) {
             throw new ServiceException(exc);
         }
     }
 
+    // the level 0 pixels a level area is downsampled from
+    private Rectangle toLevelZero(ChartaMetadata metadata, int level, Rectangle area) {
+        int fromX = area.x << level;
+        int fromY = area.y << level;
+        int toX = (int) Math.min(metadata.getWidth(), (long) (area.x + area.width) << level);
+        int toY = (int) Math.min(metadata.getHeight(), (long) (area.y + area.height) << level);
+        return new Rectangle(fromX, fromY, toX - fromX, toY - fromY);
+    }
+
+    private Rectangle intersectLevel(int id, ChartaMetadata metadata, int level, int x, int y, int w, int h)
+            throws IOException, ServiceException {
+        int levelCount = fileManager.getLevelCount(id);
+        if (level < 0 || level > levelCount) {
+            throw new ValidationException("Wrong input argument: level = " + level + " is not in [0; "
+                                          + levelCount + "]");
+        }
+        Rectangle interImgArea = BoundaryChecker.intersectInImageCoords(metadata.getWidth(level),
+                                                                        metadata.getHeight(level), x, y, w, h);
+        if (interImgArea.isEmpty()) {
+            throw new ImagesDoNotIntersectException("Regions are not intersecting");
+        }
+        return interImgArea;
+    }
+
     @Override
-    public void updateSegment(int id, int x, int y, int w, int h, byte[] data) throws ServiceException {
+    public void updateSegment(int id, int x, int y, int w, int h, InputStream data) throws ServiceException {
         validateWidthAndHeight(w, h);
         validateIdExistence(id);
         try {
-            Dimension dims = readImageDimensions(id);
-            Rectangle interSegArea = BoundaryChecker.intersectInSegmentCoords(dims.width, dims.height, x, y, w, h);
+            Timer.Sample stage = Timer.start();
+            ChartaMetadata metadata = fileManager.getMetadata(id);
+            stage.stop(UPDATE_METADATA_TIMER);
+            Rectangle interSegArea = BoundaryChecker.intersectInSegmentCoords(metadata.getWidth(),
+                                                                              metadata.getHeight(), x, y, w, h);
             if (interSegArea.isEmpty()) {
                 throw new ImagesDoNotIntersectException();
             }
-            File target = fileManager.get(id);
-            BufferedImage segment = ImageFormatConverter.byteArrayToBufferedBmpImage(data);
-            BufferedImage croppedSeg = segment.getSubimage(interSegArea.x, interSegArea.y,
-                                                           interSegArea.width, interSegArea.height);
-            BufferedImage image = ImageIO.read(target);
-            Graphics2D gr = image.createGraphics();
-            Rectangle interImgArea = BoundaryChecker.intersectInImageCoords(dims.width, dims.height, x, y, w, h);
-            gr.drawImage(croppedSeg, null, interImgArea.x, interImgArea.y);
-            ImageIO.write(image, "bmp", target);
+            Rectangle interImgArea = BoundaryChecker.intersectInImageCoords(metadata.getWidth(), metadata.getHeight(),
+                                                                            x, y, w, h);
+            stage = Timer.start();
+            BmpRowReader reader = openFragment(data, w, h);
+            stage.stop(UPDATE_DECODE_TIMER);
+            int rowLength = w * BmpHeader.BYTES_PER_PIXEL;
+            int spanOffset = interSegArea.x * BmpHeader.BYTES_PER_PIXEL;
+            int spanLength = interSegArea.width * BmpHeader.BYTES_PER_PIXEL;
+            long pixelBytes = (long) spanLength * interSegArea.height;
+            if (pixelBytes > MAX_BATCH_PIXEL_BYTES) {
+                throw new ValidationException("Fragment exceeds " + MAX_BATCH_PIXEL_BYTES + " bytes of pixel data");
+            }
+            stage = Timer.start();
+            try (BufferPool.Lease rowBuffer = bufferPool.acquire(rowLength);
+                 BufferPool.Lease pixelBuffer = bufferPool.acquire((int) pixelBytes)) {
+                byte[] row = rowBuffer.array();
+                byte[] pixels = pixelBuffer.array();
+                // the whole fragment is off the network before its rows are locked, so a slow client stalls nobody
+                // else, while the fragment is still applied as one unit in the order the writers got the lock
+                for (int rowsLeft = interSegArea.height; rowsLeft > 0; ) {
+                    int j = reader.nextRowIndex();
+                    if (j < interSegArea.y || j >= interSegArea.y + interSegArea.height) {
+                        reader.skipRow();
+                        continue;
+                    }
+                    int offset = (j - interSegArea.y) * spanLength;
+                    if (spanLength == rowLength) {
+                        reader.readRow(pixels, offset);
+                    } else {
+                        reader.readRow(row);
+                        System.arraycopy(row, spanOffset, pixels, offset, spanLength);
+                    }
+                    rowsLeft--;
+                }
+                try (ChartaLockManager.RowLock lock = lockManager.lockRowsForWrite(
+                        id, interImgArea.y, interImgArea.y + interImgArea.height)) {
+                    // rechecked under the lock, so a delete that raced the upload wins
+                    validateIdExistence(id);
+                    try (Charta charta = fileManager.open(id)) {
+                        executor.forEachBand(0, interSegArea.height, spanLength, (from, to) -> {
+                            for (int k = from; k < to; k++) {
+                                charta.writeRow(interImgArea.x, interImgArea.y + k,
+                                                ByteBuffer.wrap(pixels, k * spanLength, spanLength));
+                            }
+                        });
+                    }
+                }
+            } finally {
+                segmentCache.invalidate(id, interImgArea);
+            }
+            stage.stop(UPDATE_TRANSFER_TIMER);
+            WRITTEN_BYTES.record((double) pixelBytes);
+        } catch (BmpFormatException exc) {
+            throw new ValidationException(exc.getMessage(), exc);
+        } catch (IOException exc) {
+            throw new ServiceException(exc);
+        }
+    }
+
+    @Override
+    public void updateSegments(int id, InputStream batch) throws ServiceException {
+        validateIdExistence(id);
+        List<PendingFragment> fragments = new ArrayList<>();
+        try {
+            ChartaMetadata metadata = fileManager.getMetadata(id);
+            Timer.Sample stage = Timer.start();
+            readFragments(metadata, new FragmentBatchReader(batch), fragments);
+            stage.stop(BATCH_DECODE_TIMER);
+            if (fragments.isEmpty()) {
+                return;
+            }
+            Rectangle bounds = new Rectangle(fragments.get(0).area);
+            for (PendingFragment fragment : fragments) {
+                bounds.add(fragment.area);
+            }
+            AtomicLong written = new AtomicLong();
+            stage = Timer.start();
+            try (ChartaLockManager.RowLock lock = lockManager.lockRowsForWrite(id, bounds.y,
+                                                                               bounds.y + bounds.height);
+                 Charta charta = fileManager.open(id)) {
+                executor.forEachBand(bounds.y, bounds.y + bounds.height,
+                                     (long) bounds.width * BmpHeader.BYTES_PER_PIXEL,
+                                     (from, to) -> written.addAndGet(applyFragments(charta, fragments,
+                                                                                    bounds, from, to)));
+            } finally {
+                for (PendingFragment fragment : fragments) {
+                    segmentCache.invalidate(id, fragment.area);
+                }
+            }
+            stage.stop(BATCH_TRANSFER_TIMER);
+            BATCH_WRITTEN_BYTES.record(written.get());
+        } catch (BmpFormatException exc) {
+            throw new ValidationException(exc.getMessage(), exc);
         } catch (IOException exc) {
             throw new ServiceException(exc);
+        } finally {
+            for (PendingFragment fragment : fragments) {
+                fragment.buffer.close();
+            }
+        }
+    }
+
+    // Sweeps rows [fromRow; toRow) keeping the fragments that cover the current row ordered by submission
+    private long applyFragments(Charta charta, List<PendingFragment> fragments, Rectangle bounds,
+                                int fromRow, int toRow) throws IOException {
+        List<List<PendingFragment>> starting = new ArrayList<>();
+        for (int i = fromRow; i < toRow; i++) {
+            starting.add(new ArrayList<>());
+        }
+        for (PendingFragment fragment : fragments) {
+            int top = Math.max(fragment.area.y, fromRow);
+            if (top < Math.min(fragment.area.y + fragment.area.height, toRow)) {
+                starting.get(top - fromRow).add(fragment);
+            }
+        }
+        long written = 0;
+        try (BufferPool.Lease buffer = bufferPool.acquire(bounds.width * BmpHeader.BYTES_PER_PIXEL)) {
+            byte[] row = buffer.array();
+            TreeMap<Integer, PendingFragment> active = new TreeMap<>();
+            for (int chartaY = fromRow; chartaY < toRow; chartaY++) {
+                for (PendingFragment fragment : starting.get(chartaY - fromRow)) {
+                    active.put(fragment.order, fragment);
+                }
+                for (Iterator<PendingFragment> it = active.values().iterator(); it.hasNext(); ) {
+                    PendingFragment fragment = it.next();
+                    if (fragment.area.y + fragment.area.height <= chartaY) {
+                        it.remove();
+                    }
+                }
+                if (active.isEmpty()) {
+                    continue;
+                }
+                int fromX = Integer.MAX_VALUE;
+                int toX = Integer.MIN_VALUE;
+                for (PendingFragment fragment : active.values()) {
+                    fromX = Math.min(fromX, fragment.area.x);
+                    toX = Math.max(toX, fragment.area.x + fragment.area.width);
+                }
+                int spanLength = (toX - fromX) * BmpHeader.BYTES_PER_PIXEL;
+                ByteBuffer span = ByteBuffer.wrap(row, 0, spanLength);
+                if (!coversSpan(active.values(), fromX, toX)) {
+                    charta.readRow(fromX, chartaY, span);
+                    span.rewind();
+                }
+                for (PendingFragment fragment : active.values()) {
+                    int length = fragment.area.width * BmpHeader.BYTES_PER_PIXEL;
+                    System.arraycopy(fragment.pixels, (chartaY - fragment.area.y) * length,
+                                     row, (fragment.area.x - fromX) * BmpHeader.BYTES_PER_PIXEL, length);
+                }
+                charta.writeRow(fromX, chartaY, span);
+                written += spanLength;
+            }
+        }
+        return written;
+    }
+
+    private void readFragments(ChartaMetadata metadata, FragmentBatchReader reader, List<PendingFragment> fragments)
+            throws IOException, ServiceException {
+        long pixelBytes = 0;
+        while (reader.next()) {
+            int x = reader.getX();
+            int y = reader.getY();
+            int w = reader.getWidth();
+            int h = reader.getHeight();
+            validateWidthAndHeight(w, h);
+            Rectangle interSegArea = BoundaryChecker.intersectInSegmentCoords(metadata.getWidth(),
+                                                                              metadata.getHeight(), x, y, w, h);
+            if (interSegArea.isEmpty()) {
+                throw new ImagesDoNotIntersectException("Fragment #" + fragments.size()
+                                                        + " does not intersect the charta");
+            }
+            Rectangle interImgArea = BoundaryChecker.intersectInImageCoords(metadata.getWidth(), metadata.getHeight(),
+                                                                            x, y, w, h);
+            int spanOffset = interSegArea.x * BmpHeader.BYTES_PER_PIXEL;
+            int spanLength = interSegArea.width * BmpHeader.BYTES_PER_PIXEL;
+            pixelBytes += (long) spanLength * interSegArea.height;
+            if (pixelBytes > MAX_BATCH_PIXEL_BYTES) {
+                throw new ValidationException("Batch exceeds " + MAX_BATCH_PIXEL_BYTES + " bytes of pixel data");
+            }
+            BmpRowReader rows = openFragment(reader.getData(), w, h);
+            int rowLength = w * BmpHeader.BYTES_PER_PIXEL;
+            // added before it is filled, so the caller releases the buffer even if the fragment is broken
+            PendingFragment fragment = new PendingFragment(fragments.size(), interImgArea,
+                                                           bufferPool.acquire(spanLength * interSegArea.height));
+            fragments.add(fragment);
+            int rowsLeft = interSegArea.height;
+            try (BufferPool.Lease row = bufferPool.acquire(rowLength)) {
+                while (rowsLeft > 0) {
+                    int j = rows.nextRowIndex();
+                    if (j < interSegArea.y || j >= interSegArea.y + interSegArea.height) {
+                        rows.skipRow();
+                    } else if (spanLength == rowLength) {
+                        rows.readRow(fragment.pixels, (j - interSegArea.y) * spanLength);
+                        rowsLeft--;
+                    } else {
+                        rows.readRow(row.array());
+                        System.arraycopy(row.array(), spanOffset, fragment.pixels,
+                                         (j - interSegArea.y) * spanLength, spanLength);
+                        rowsLeft--;
+                    }
+                }
+            }
         }
     }
 
-    private Dimension readImageDimensions(int id) throws IOException {
-        Dimension dims;
-        try (ImageInputStream stream = ImageIO.createImageInputStream(fileManager.get(id))) {
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
-            if (!readers.hasNext()) {
-                throw new IOException("Cannot read image region");
+    private static boolean coversSpan(Collection<PendingFragment> fragments, int fromX, int toX) {
+        for (PendingFragment fragment : fragments) {
+            if (fragment.area.x == fromX && fragment.area.x + fragment.area.width == toX) {
+                return true;
             }
-            ImageReader reader = readers.next();
-            reader.setInput(stream);
-            dims = new Dimension(reader.getWidth(0), reader.getHeight(0));
         }
-        return dims;
+        return false;
+    }
+
+    private BmpRowReader openFragment(InputStream data, int w, int h) throws IOException, ValidationException {
+        BmpRowReader reader = new BmpRowReader(data);
+        BmpHeader header = reader.getHeader();
+        if (header.getWidth() != w || header.getHeight() != h) {
+            throw new ValidationException("Fragment of size " + header.getWidth() + "x" + header.getHeight()
+                                          + " does not match declared size " + w + "x" + h);
+        }
+        return reader;
     }
 
     @Override
     public void deleteCharta(int id) throws ServiceException{
-        validateIdExistence(id);
-        fileManager.delete(id);
+        try (ChartaLockManager.RowLock lock = lockManager.lockCharta(id)) {
+            validateIdExistence(id);
+            fileManager.delete(id);
+            segmentCache.invalidate(id);
+        }
+    }
+
+    private static class PendingFragment {
+        final int order;
+        final Rectangle area;
+        final BufferPool.Lease buffer;
+        final byte[] pixels;
+
+        PendingFragment(int order, Rectangle area, BufferPool.Lease buffer) {
+            this.order = order;
+            this.area = area;
+            this.buffer = buffer;
+            pixels = buffer.array();
+        }
+    }
+
+    // A requested region, its part inside the charta and, once the sweep reaches it, its pixels laid out
+    // as a bottom-up BMP
+    private static class PendingWindow {
+        final Rectangle region;
+        final Rectangle area;
+        final Rectangle segArea;
+        final BmpHeader header;
+        BufferPool.Lease buffer;
+
+        PendingWindow(Rectangle region, Rectangle area, Rectangle segArea) {
+            this.region = region;
+            this.area = area;
+            this.segArea = segArea;
+            header = BmpHeader.bottomUp(region.width, region.height);
+        }
+
+        int firstRow(boolean bottomUp) {
+            return bottomUp ? area.y + area.height - 1 : area.y;
+        }
+
+        // the row after the last one in sweep order
+        int endRow(boolean bottomUp) {
+            return bottomUp ? area.y - 1 : area.y + area.height;
+        }
+
+        void allocate(BufferPool bufferPool) {
+            int size = header.getRowStride() * region.height;
+            buffer = bufferPool.acquire(size);
+            Arrays.fill(buffer.array(), 0, size, (byte) 0);
+        }
+
+        void copyRow(int chartaY, byte[] row, int rowX) {
+            int j = chartaY - area.y + segArea.y;
+            System.arraycopy(row, (area.x - rowX) * BmpHeader.BYTES_PER_PIXEL, buffer.array(),
+                             (region.height - 1 - j) * header.getRowStride()
+                             + segArea.x * BmpHeader.BYTES_PER_PIXEL,
+                             area.width * BmpHeader.BYTES_PER_PIXEL);
+        }
+
+        // same frame layout as the fragment batches that are posted
+        void writeTo(OutputStream out) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(FragmentBatchReader.FRAME_HEADER_SIZE + BmpHeader.SIZE);
+            frame.putInt(region.x)
+                 .putInt(region.y)
+                 .putInt(region.width)
+                 .putInt(region.height)
+                 .putInt((int) header.getFileSize());
+            header.write(frame);
+            out.write(frame.array());
+            out.write(buffer.array(), 0, header.getRowStride() * region.height);
+        }
+
+        void release() {
+            if (buffer != null) {
+                buffer.close();
+                buffer = null;
+            }
+        }
+    }
+
+    private static Timer stageTimer(String operation, String stage) {
+        return Timer.builder("charta.segment.stage")
+                    .tag("operation", operation)
+                    .tag("stage", stage)
+                    .publishPercentileHistogram()
+                    .register(Metrics.globalRegistry);
+    }
+
+    private static DistributionSummary transferredBytes(String operation) {
+        return DistributionSummary.builder("charta.segment.bytes")
+                                  .tag("operation", operation)
+                                  .baseUnit("bytes")
+                                  .register(Metrics.globalRegistry);
     }
 
     private void validateWidthAndHeight(int w, int h) throws ValidationException {
@@ -0,0 +1,131 @@
+package ru.turbo.goose.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Each request works through its own bands on the calling thread and borrows at most `helpers` pool workers.
+// A helper handles one band and then requeues itself, so the FIFO pool interleaves bands of concurrent requests.
+@Component
+public class RowBandExecutor {
+    static final int BAND_BYTES = 256 * 1024;
+    private final ForkJoinPool pool;
+    private final long threshold;
+    private final int helpers;
+
+    public interface BandTask {
+        void run(int fromRow, int toRow) throws IOException;
+    }
+
+    public RowBandExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), 4L * 1024 * 1024);
+    }
+
+    @Autowired
+    public RowBandExecutor(@Value("${chartographer.parallel.threads:0}") int threads,
+                           @Value("${chartographer.parallel.threshold:4194304}") long threshold) {
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.threshold = threshold;
+        helpers = Math.max(1, parallelism / 2);
+    }
+
+    public boolean isParallel(long bytes) {
+        return bytes >= threshold && pool.getParallelism() > 1;
+    }
+
+    public void forEachBand(int fromRow, int toRow, long bytesPerRow, BandTask task) throws IOException {
+        if (fromRow >= toRow) {
+            return;
+        }
+        if (!isParallel((toRow - fromRow) * bytesPerRow)) {
+            task.run(fromRow, toRow);
+            return;
+        }
+        int bandRows = (int) Math.max(1, BAND_BYTES / Math.max(1, bytesPerRow));
+        Bands bands = new Bands(fromRow, toRow, bandRows, task);
+        for (int i = Math.min(helpers, bands.count - 1); i > 0; i--) {
+            pool.execute(bands::helpOnce);
+        }
+        while (bands.runNext()) {
+            // the calling thread always makes progress on its own request
+        }
+        bands.await();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class Bands {
+        private final int fromRow;
+        private final int toRow;
+        private final int bandRows;
+        private final int count;
+        private final BandTask task;
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Bands(int fromRow, int toRow, int bandRows, BandTask task) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+            this.task = task;
+            count = (int) (((long) toRow - fromRow + bandRows - 1) / bandRows);
+            done = new CountDownLatch(count);
+        }
+
+        boolean runNext() {
+            int band = next.getAndIncrement();
+            if (band >= count) {
+                return false;
+            }
+            try {
+                if (failure.get() == null) {
+                    int from = fromRow + band * bandRows;
+                    task.run(from, (int) Math.min(toRow, (long) from + bandRows));
+                }
+            } catch (Throwable exc) {
+                failure.compareAndSet(null, exc);
+            } finally {
+                done.countDown();
+            }
+            return true;
+        }
+
+        void helpOnce() {
+            if (runNext() && next.get() < count) {
+                pool.execute(this::helpOnce);
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for row bands");
+            }
+            Throwable exc = failure.get();
+            if (exc instanceof IOException) {
+                throw (IOException) exc;
+            }
+            if (exc instanceof RuntimeException) {
+                throw (RuntimeException) exc;
+            }
+            if (exc instanceof Error) {
+                throw (Error) exc;
+            }
+        }
+    }
+}
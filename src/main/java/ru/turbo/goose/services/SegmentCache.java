@@ -0,0 +1,213 @@
+package ru.turbo.goose.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.turbo.goose.exceptions.ServiceException;
+import ru.turbo.goose.utils.ImageFormat;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Encoded segments in LRU order, bounded by their total size. An entry is served only while the version of the
+// level 0 region it was rendered from is unchanged, and is dropped as soon as an update touches that region.
+// Concurrent requests for the same window wait for the first one to render it.
+@Component
+public class SegmentCache {
+    private static final Counter HITS = Metrics.counter("charta.cache.requests", "cache", "segment", "result", "hit");
+    private static final Counter MISSES = Metrics.counter("charta.cache.requests", "cache", "segment", "result", "miss");
+    private static final Counter EVICTIONS = Metrics.counter("charta.cache.evictions", "cache", "segment");
+    private final long capacity;
+    private final long maxEntrySize;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Set<Key>> keysByCharta = new HashMap<>();
+    private long cachedBytes;
+
+    public interface Renderer {
+        byte[] render() throws ServiceException;
+    }
+
+    @Autowired
+    public SegmentCache(@Value("${chartographer.segment-cache.size:0}") long capacity) {
+        this.capacity = capacity;
+        // a single window must not be able to flush most of the cache
+        maxEntrySize = capacity / 16;
+    }
+
+    public boolean accepts(long size) {
+        return size > 0 && size <= maxEntrySize;
+    }
+
+    public byte[] get(Key key, long version, Rectangle region, Renderer renderer) throws ServiceException {
+        Entry entry;
+        boolean rendering = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || entry.version != version) {
+                if (entry != null) {
+                    remove(key, entry);
+                }
+                entry = new Entry(version, region);
+                entries.put(key, entry);
+                keysByCharta.computeIfAbsent(key.id, id -> new HashSet<>()).add(key);
+                rendering = true;
+            }
+        }
+        if (!rendering) {
+            try {
+                byte[] data = entry.data.get();
+                HITS.increment();
+                return data;
+            } catch (ExecutionException exc) {
+                // the first request failed, possibly for reasons of its own
+                return renderer.render();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while waiting for a segment", exc);
+            }
+        }
+        MISSES.increment();
+        byte[] data;
+        try {
+            data = renderer.render();
+        } catch (ServiceException | RuntimeException exc) {
+            entry.data.completeExceptionally(exc);
+            synchronized (this) {
+                if (entries.get(key) == entry) {
+                    remove(key, entry);
+                }
+            }
+            throw exc;
+        }
+        entry.data.complete(data);
+        synchronized (this) {
+            // an update may have invalidated the entry while it was rendered
+            if (entries.get(key) == entry) {
+                if (data.length > maxEntrySize) {
+                    remove(key, entry);
+                } else {
+                    entry.size = data.length;
+                    cachedBytes += data.length;
+                    evict();
+                }
+            }
+        }
+        return data;
+    }
+
+    public synchronized void invalidate(int id, Rectangle region) {
+        Set<Key> keys = keysByCharta.get(id);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : new ArrayList<>(keys)) {
+            Entry entry = entries.get(key);
+            if (entry.region.intersects(region)) {
+                remove(key, entry);
+            }
+        }
+    }
+
+    public synchronized void invalidate(int id) {
+        Set<Key> keys = keysByCharta.get(id);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : new ArrayList<>(keys)) {
+            remove(key, entries.get(key));
+        }
+    }
+
+    synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > capacity && eldest.hasNext()) {
+            Map.Entry<Key, Entry> next = eldest.next();
+            if (!next.getValue().data.isDone()) {
+                continue;
+            }
+            eldest.remove();
+            forget(next.getKey());
+            cachedBytes -= next.getValue().size;
+            EVICTIONS.increment();
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        forget(key);
+        cachedBytes -= entry.size;
+    }
+
+    private void forget(Key key) {
+        Set<Key> keys = keysByCharta.get(key.id);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByCharta.remove(key.id);
+        }
+    }
+
+    public static final class Key {
+        private final int id;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final int level;
+        private final ImageFormat format;
+
+        public Key(int id, int x, int y, int width, int height, int level, ImageFormat format) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.level = level;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return id == key.id && x == key.x && y == key.y && width == key.width && height == key.height
+                   && level == key.level && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, x, y, width, height, level, format);
+        }
+    }
+
+    private static class Entry {
+        private final long version;
+        private final Rectangle region;
+        private final CompletableFuture<byte[]> data = new CompletableFuture<>();
+        private long size;
+
+        Entry(long version, Rectangle region) {
+            this.version = version;
+            this.region = region;
+        }
+    }
+}
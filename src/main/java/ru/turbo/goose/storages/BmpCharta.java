@@ -0,0 +1,114 @@
+package ru.turbo.goose.storages;
+
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class BmpCharta implements Charta {
+    private final FileChannel channel;
+    private final ChartaMetadata metadata;
+    private final BmpHeader header;
+    private boolean modified;
+
+    BmpCharta(FileChannel channel, ChartaMetadata metadata) {
+        this.channel = channel;
+        this.metadata = metadata;
+        this.header = metadata.getHeader();
+    }
+
+    public static BmpCharta open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new BmpCharta(channel, ChartaMetadata.read(channel));
+        } catch (IOException exc) {
+            channel.close();
+            throw exc;
+        }
+    }
+
+    public static BmpCharta open(Path path, ChartaMetadata metadata) throws IOException {
+        return new BmpCharta(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE), metadata);
+    }
+
+    public static void create(Path path, int width, int height) throws IOException {
+        BmpHeader header = BmpHeader.bottomUp(width, height);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer headerBytes = ByteBuffer.allocate(BmpHeader.SIZE);
+            header.write(headerBytes);
+            writeFully(channel, headerBytes.flip(), 0);
+            // sizing the file by its last byte leaves the pixels a hole: no blocks are written, and reads of
+            // untouched rows return zeros, i.e. black, so creation takes the same time for any dimensions
+            if (header.getFileSize() > BmpHeader.SIZE) {
+                writeFully(channel, ByteBuffer.allocate(1), header.getFileSize() - 1);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    @Override
+    public void readRow(int x, int y, ByteBuffer dst) throws IOException {
+        long position = spanOffset(x, y, dst.remaining());
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new EOFException("Charta row " + y + " is truncated");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void writeRow(int x, int y, ByteBuffer src) throws IOException {
+        long position = spanOffset(x, y, src.remaining());
+        modified = true;
+        writeFully(channel, src, position);
+    }
+
+    private long spanOffset(int x, int y, int length) {
+        return spanOffset(header, x, y, length);
+    }
+
+    static long spanOffset(BmpHeader header, int x, int y, int length) {
+        int pixels = length / BmpHeader.BYTES_PER_PIXEL;
+        if (x < 0 || y < 0 || y >= header.getHeight() || x + pixels > header.getWidth()
+                || length % BmpHeader.BYTES_PER_PIXEL != 0) {
+            throw new IndexOutOfBoundsException("Span (" + x + ";" + y + ") of " + pixels
+                                                + " pixels is out of charta bounds");
+        }
+        return header.rowOffset(y) + (long) x * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (modified) {
+            metadata.markModified();
+        }
+        channel.close();
+    }
+}
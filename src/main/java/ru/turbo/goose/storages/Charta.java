@@ -0,0 +1,13 @@
+package ru.turbo.goose.storages;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface Charta extends Closeable {
+    int getWidth();
+    int getHeight();
+    void readRow(int x, int y, ByteBuffer dst) throws IOException;
+    void writeRow(int x, int y, ByteBuffer src) throws IOException;
+    void force() throws IOException;
+}
@@ -0,0 +1,115 @@
+package ru.turbo.goose.storages;
+
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChartaMetadata {
+    private final StorageFormat format;
+    private final int width;
+    private final int height;
+    private final int rowStride;
+    private final int dataOffset;
+    private final BmpHeader header;
+    private final TileIndex tileIndex;
+    private final AtomicLong version = new AtomicLong();
+
+    public ChartaMetadata(BmpHeader header) {
+        this.format = StorageFormat.BMP;
+        this.width = header.getWidth();
+        this.height = header.getHeight();
+        this.rowStride = header.getRowStride();
+        this.dataOffset = header.getDataOffset();
+        this.header = header;
+        this.tileIndex = null;
+    }
+
+    ChartaMetadata(int width, int height, TileIndex tileIndex) {
+        this.format = StorageFormat.TILED;
+        this.width = width;
+        this.height = height;
+        this.rowStride = tileIndex.getTileSize() * BmpHeader.BYTES_PER_PIXEL;
+        this.dataOffset = Math.toIntExact(tileIndex.getDataOffset());
+        this.header = null;
+        this.tileIndex = tileIndex;
+    }
+
+    public static ChartaMetadata read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    static ChartaMetadata read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BmpHeader.SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new EOFException("BMP header is truncated");
+            }
+        }
+        return new ChartaMetadata(BmpHeader.read(buffer.flip()));
+    }
+
+    BmpHeader getHeader() {
+        return header;
+    }
+
+    TileIndex getTileIndex() {
+        return tileIndex;
+    }
+
+    public StorageFormat getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        int count = 0;
+        while (getWidth(count) > 1 || getHeight(count) > 1) {
+            count++;
+        }
+        return count;
+    }
+
+    public int getWidth(int level) {
+        return (int) ((width + (1L << level) - 1) >> level);
+    }
+
+    public int getHeight(int level) {
+        return (int) ((height + (1L << level) - 1) >> level);
+    }
+
+    // rows are stored last first, so sweeping them upwards reads the file forwards
+    public boolean isBottomUp() {
+        return header != null && !header.isTopDown();
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    void markModified() {
+        version.incrementAndGet();
+    }
+}
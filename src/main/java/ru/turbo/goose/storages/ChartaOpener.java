@@ -0,0 +1,7 @@
+package ru.turbo.goose.storages;
+
+import java.io.IOException;
+
+interface ChartaOpener {
+    Charta open(int id) throws IOException;
+}
@@ -0,0 +1,291 @@
+package ru.turbo.goose.storages;
+
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Level n halves level n - 1 with a 2x2 box filter. Levels are stored as BMP files in the pyramid directory
+// of the root that holds the charta, so their I/O is spread over the roots like the chartas themselves,
+// and rebuilt lazily, block by block, from whatever blocks were marked dirty by writes to level 0.
+class ChartaPyramid {
+    static final String DIR = "pyramid";
+    static final int BLOCK_SIZE = 64;
+    private final ShardLayout layout;
+    private final ChartaOpener source;
+    private final Map<Integer, Levels> pyramids = new ConcurrentHashMap<>();
+
+    ChartaPyramid(ShardLayout layout, ChartaOpener source) {
+        this.layout = layout;
+        this.source = source;
+        // dirty state is not persisted, so levels left by a previous run cannot be trusted
+        try {
+            for (Path root : layout.getRoots()) {
+                Path dir = root.resolve(DIR);
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    Charta open(int id, int level, ChartaMetadata metadata) {
+        if (level < 1 || level > metadata.getLevelCount()) {
+            throw new IllegalArgumentException("Charta with id=" + id + " has no level " + level);
+        }
+        return new LevelCharta(pyramids.computeIfAbsent(id, key -> new Levels(key, metadata)), level);
+    }
+
+    void markDirty(int id, int x, int y, int width, int height) {
+        Levels levels = pyramids.get(id);
+        if (levels == null) {
+            return;
+        }
+        for (int n = 1; n < levels.levels.length; n++) {
+            levels.levels[n].markDirty(x >> n, y >> n, ((x + width - 1) >> n) + 1, ((y + height - 1) >> n) + 1);
+        }
+    }
+
+    void discard(int id) {
+        Levels levels = pyramids.remove(id);
+        if (levels == null) {
+            return;
+        }
+        levels.lock.lock();
+        try {
+            for (int n = 1; n < levels.levels.length; n++) {
+                levels.levels[n].path.toFile().delete();
+            }
+        } finally {
+            levels.lock.unlock();
+        }
+    }
+
+    private class Levels {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int id;
+        private final Level[] levels;
+
+        Levels(int id, ChartaMetadata metadata) {
+            this.id = id;
+            levels = new Level[metadata.getLevelCount() + 1];
+            Path dir = layout.root(id).resolve(DIR);
+            for (int n = 1; n < levels.length; n++) {
+                levels[n] = new Level(dir.resolve(id + "_" + n + StorageFormat.BMP.getExtension()),
+                                      metadata.getWidth(n), metadata.getHeight(n));
+            }
+        }
+    }
+
+    private static class Level {
+        private final Path path;
+        private final ChartaMetadata metadata;
+        private final int blocksPerRow;
+        private final BitSet dirty = new BitSet();
+        // guarded by the lock of the levels
+        private boolean created;
+
+        Level(Path path, int width, int height) {
+            this.path = path;
+            this.metadata = new ChartaMetadata(BmpHeader.bottomUp(width, height));
+            blocksPerRow = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            dirty.set(0, blocksPerRow * ((height + BLOCK_SIZE - 1) / BLOCK_SIZE));
+        }
+
+        Charta open() throws IOException {
+            if (!created) {
+                Files.createDirectories(path.getParent());
+                path.toFile().createNewFile();
+                BmpCharta.create(path, metadata.getWidth(), metadata.getHeight());
+                created = true;
+            }
+            return BmpCharta.open(path, metadata);
+        }
+
+        void markDirty(int fromX, int fromY, int toX, int toY) {
+            synchronized (dirty) {
+                for (int by = fromY / BLOCK_SIZE; by <= (toY - 1) / BLOCK_SIZE; by++) {
+                    dirty.set(by * blocksPerRow + fromX / BLOCK_SIZE, by * blocksPerRow + (toX - 1) / BLOCK_SIZE + 1);
+                }
+            }
+        }
+
+        boolean isDirty(int fromX, int fromY, int toX, int toY) {
+            synchronized (dirty) {
+                for (int by = fromY / BLOCK_SIZE; by <= (toY - 1) / BLOCK_SIZE; by++) {
+                    int next = dirty.nextSetBit(by * blocksPerRow + fromX / BLOCK_SIZE);
+                    if (next >= 0 && next <= by * blocksPerRow + (toX - 1) / BLOCK_SIZE) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        boolean takeDirty(int bx, int by) {
+            synchronized (dirty) {
+                int block = by * blocksPerRow + bx;
+                boolean wasDirty = dirty.get(block);
+                dirty.clear(block);
+                return wasDirty;
+            }
+        }
+    }
+
+    private class LevelCharta implements Charta {
+        private final Levels levels;
+        private final int level;
+        private final AtomicReferenceArray<Charta> chartas;
+
+        LevelCharta(Levels levels, int level) {
+            this.levels = levels;
+            this.level = level;
+            chartas = new AtomicReferenceArray<>(level + 1);
+        }
+
+        @Override
+        public int getWidth() {
+            return levels.levels[level].metadata.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return levels.levels[level].metadata.getHeight();
+        }
+
+        @Override
+        public void readRow(int x, int y, ByteBuffer dst) throws IOException {
+            int toX = x + dst.remaining() / BmpHeader.BYTES_PER_PIXEL;
+            // a refresh clears the dirty bits before it rewrites the blocks, so clean bits are only trusted
+            // when no refresh is running
+            if (levels.levels[level].isDirty(x, y, toX, y + 1) || levels.lock.isLocked()) {
+                levels.lock.lock();
+                try {
+                    refresh(level, x, y, toX, y + 1);
+                } finally {
+                    levels.lock.unlock();
+                }
+            }
+            charta(level).readRow(x, y, dst);
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer src) {
+            throw new UnsupportedOperationException("Pyramid levels are read-only");
+        }
+
+        @Override
+        public void force() {
+        }
+
+        private Charta charta(int n) throws IOException {
+            Charta charta = chartas.get(n);
+            if (charta != null) {
+                return charta;
+            }
+            levels.lock.lock();
+            try {
+                charta = chartas.get(n);
+                if (charta == null) {
+                    charta = n == 0 ? source.open(levels.id) : levels.levels[n].open();
+                    chartas.set(n, charta);
+                }
+                return charta;
+            } finally {
+                levels.lock.unlock();
+            }
+        }
+
+        private void refresh(int n, int fromX, int fromY, int toX, int toY) throws IOException {
+            Level current = levels.levels[n];
+            for (int by = fromY / BLOCK_SIZE; by <= (toY - 1) / BLOCK_SIZE; by++) {
+                for (int bx = fromX / BLOCK_SIZE; bx <= (toX - 1) / BLOCK_SIZE; bx++) {
+                    // cleared before reading the level below, so a concurrent write marks the block again
+                    if (current.takeDirty(bx, by)) {
+                        int blockX = bx * BLOCK_SIZE;
+                        int blockY = by * BLOCK_SIZE;
+                        int width = Math.min(BLOCK_SIZE, current.metadata.getWidth() - blockX);
+                        int height = Math.min(BLOCK_SIZE, current.metadata.getHeight() - blockY);
+                        if (n > 1) {
+                            ChartaMetadata below = levels.levels[n - 1].metadata;
+                            refresh(n - 1, 2 * blockX, 2 * blockY,
+                                    Math.min(2 * (blockX + width), below.getWidth()),
+                                    Math.min(2 * (blockY + height), below.getHeight()));
+                        }
+                        downsample(n, blockX, blockY, width, height);
+                    }
+                }
+            }
+        }
+
+        private void downsample(int n, int blockX, int blockY, int width, int height) throws IOException {
+            Charta below = charta(n - 1);
+            Charta current = charta(n);
+            int belowWidth = Math.min(2 * width, below.getWidth() - 2 * blockX);
+            byte[] top = new byte[belowWidth * BmpHeader.BYTES_PER_PIXEL];
+            byte[] bottom = new byte[top.length];
+            byte[] row = new byte[width * BmpHeader.BYTES_PER_PIXEL];
+            for (int y = blockY; y < blockY + height; y++) {
+                boolean hasBottom = 2 * y + 1 < below.getHeight();
+                below.readRow(2 * blockX, 2 * y, ByteBuffer.wrap(top));
+                if (hasBottom) {
+                    below.readRow(2 * blockX, 2 * y + 1, ByteBuffer.wrap(bottom));
+                }
+                for (int i = 0; i < width; i++) {
+                    boolean hasRight = 2 * i + 1 < belowWidth;
+                    int samples = (hasRight ? 2 : 1) * (hasBottom ? 2 : 1);
+                    for (int c = 0; c < BmpHeader.BYTES_PER_PIXEL; c++) {
+                        int left = 2 * i * BmpHeader.BYTES_PER_PIXEL + c;
+                        int right = left + BmpHeader.BYTES_PER_PIXEL;
+                        int sum = (top[left] & 0xFF);
+                        if (hasRight) {
+                            sum += top[right] & 0xFF;
+                        }
+                        if (hasBottom) {
+                            sum += bottom[left] & 0xFF;
+                            if (hasRight) {
+                                sum += bottom[right] & 0xFF;
+                            }
+                        }
+                        row[i * BmpHeader.BYTES_PER_PIXEL + c] = (byte) ((sum + samples / 2) / samples);
+                    }
+                }
+                current.writeRow(blockX, y, ByteBuffer.wrap(row));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (int n = 0; n < chartas.length(); n++) {
+                Charta charta = chartas.get(n);
+                if (charta != null) {
+                    try {
+                        charta.close();
+                    } catch (IOException exc) {
+                        failure = exc;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
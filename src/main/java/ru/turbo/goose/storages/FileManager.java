@@ -5,8 +5,32 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 public interface FileManager {
-    int create() throws IOException;
+    int create(int width, int height) throws IOException;
     boolean exists(int id);
     File get(int id) throws FileNotFoundException;
     boolean delete(int id);
+
+    default Charta open(int id) throws IOException {
+        return BmpCharta.open(get(id).toPath());
+    }
+
+    // only a manager that keeps a pyramid has levels above 0
+    default int getLevelCount(int id) throws IOException {
+        return 0;
+    }
+
+    default Charta openLevel(int id, int level) throws IOException {
+        if (level < 0 || level > getLevelCount(id)) {
+            throw new IOException("Charta with id=" + id + " has no level " + level);
+        }
+        return open(id);
+    }
+
+    default ChartaMetadata getMetadata(int id) throws IOException {
+        return ChartaMetadata.read(get(id).toPath());
+    }
+
+    default long getVersion(int id, int x, int y, int width, int height) throws IOException {
+        return getMetadata(id).getVersion();
+    }
 }
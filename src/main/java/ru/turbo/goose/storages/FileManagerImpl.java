@@ -1,66 +1,356 @@
 package ru.turbo.goose.storages;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import ru.turbo.goose.utils.IdGenerator;
 import ru.turbo.goose.utils.PathHolder;
 
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Objects;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class FileManagerImpl implements FileManager {
     static final String DEFAULT_DATA_DIR = "charta-temp";
-    private File root;
+    static final String ID_WATERMARK = "id-watermark";
+    static final String WAL_DIR = "wal";
+    static final String MOVING_SUFFIX = ".moving";
+    private static final Logger LOG = LoggerFactory.getLogger(FileManagerImpl.class);
+    private static final Counter METADATA_HITS = Metrics.counter("charta.cache.requests",
+                                                                 "cache", "metadata", "result", "hit");
+    private static final Counter METADATA_MISSES = Metrics.counter("charta.cache.requests",
+                                                                   "cache", "metadata", "result", "miss");
+    private final ShardLayout layout;
+    private final StorageFormat format;
+    private final MappedChartaCache mappingCache;
+    private final WriteBackBuffer writeBack;
+    private final ChartaPyramid pyramid;
+    private final WriteAheadLog wal;
+    private final TileVersions versions = new TileVersions();
+    private final IdAllocator ids;
+    private final Map<Integer, StorageFormat> formats = new ConcurrentHashMap<>();
+    private final Map<Integer, ChartaMetadata> metadata = new ConcurrentHashMap<>();
+    // chartas found away from the place the ring assigns them, served from there until rebalanced
+    private final Map<Integer, Path> misplaced = new ConcurrentHashMap<>();
+    // unfinished copies and sources of finished moves that a crash left behind
+    private final List<Path> leftovers = new ArrayList<>();
 
     public FileManagerImpl() {
-        String path = PathHolder.getPath();
-        if (path == null) {
-            path = DEFAULT_DATA_DIR;
+        this(StorageFormat.BMP, 0);
+    }
+
+    public FileManagerImpl(StorageFormat format, long mappingCacheSize) {
+        this(format, mappingCacheSize, 0, 0, false, false, 0, false);
+    }
+
+    @Autowired
+    public FileManagerImpl(@Value("${chartographer.storage.format:BMP}") StorageFormat format,
+                           @Value("${chartographer.storage.mapping-cache-size:0}") long mappingCacheSize,
+                           @Value("${chartographer.storage.write-back.size:0}") long writeBackSize,
+                           @Value("${chartographer.storage.write-back.flush-interval-ms:1000}") long flushIntervalMs,
+                           @Value("${chartographer.storage.write-back.fsync:false}") boolean fsync,
+                           @Value("${chartographer.storage.wal.enabled:false}") boolean walEnabled,
+                           @Value("${chartographer.storage.wal.segment-size:67108864}") long walSegmentSize,
+                           @Value("${chartographer.storage.rebalance:false}") boolean rebalance) {
+        this(PathHolder.getPath() != null ? PathHolder.getPath() : DEFAULT_DATA_DIR, format, mappingCacheSize,
+             writeBackSize, flushIntervalMs, fsync, walEnabled, walSegmentSize);
+        if (rebalance) {
+            try {
+                rebalance();
+            } catch (IOException exc) {
+                throw new UncheckedIOException(exc);
+            }
         }
-        root = new File(path);
-        root.mkdirs();
     }
 
     FileManagerImpl(String rootDir) {
-        this.root = new File(rootDir);
-        root.mkdirs();
+        this(rootDir, StorageFormat.BMP, 0);
     }
 
-    @Override
-    public int create() throws IOException {
-        int id = IdGenerator.next();
-        while (exists(id)) {
-            id = IdGenerator.next();
+    FileManagerImpl(String rootDir, StorageFormat format, long mappingCacheSize) {
+        this(rootDir, format, mappingCacheSize, 0, 0, false, false, 0);
+    }
+
+    FileManagerImpl(String rootDir, StorageFormat format, long mappingCacheSize,
+                    long writeBackSize, long flushIntervalMs, boolean fsync,
+                    boolean walEnabled, long walSegmentSize) {
+        List<Path> roots = new ArrayList<>();
+        for (String dir : rootDir.split(File.pathSeparator)) {
+            if (!dir.isBlank()) {
+                File root = new File(dir);
+                root.mkdirs();
+                roots.add(root.toPath());
+            }
+        }
+        layout = new ShardLayout(roots);
+        this.format = format;
+        mappingCache = mappingCacheSize > 0 ? new MappedChartaCache(mappingCacheSize) : null;
+        writeBack = writeBackSize > 0 ? new WriteBackBuffer(writeBackSize, flushIntervalMs, fsync, this::openStorage)
+                                      : null;
+        pyramid = new ChartaPyramid(layout, this::openBuffered);
+        loadIndex();
+        long maxId = formats.keySet().stream().mapToLong(Integer::longValue).max().orElse(0);
+        try {
+            ids = new IdAllocator(layout.getPrimaryRoot().resolve(ID_WATERMARK), maxId + 1);
+            // replays whatever the previous run logged but may not have written to the chartas
+            wal = walEnabled ? new WriteAheadLog(layout.getPrimaryRoot().resolve(WAL_DIR), walSegmentSize,
+                                                 this::openBuffered)
+                             : null;
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    // Indexes chartas on every root, both in buckets and in the flat layout of older versions.
+    // The ones the ring now assigns elsewhere, e.g. after a root was added, stay where they are until rebalance().
+    private void loadIndex() {
+        try {
+            for (Path root : layout.getRoots()) {
+                indexDirectory(root, 0);
+            }
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    private void indexDirectory(Path dir, int depth) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Files.isDirectory(file)) {
+                    if (depth < 2 && ShardLayout.isBucket(name)) {
+                        indexDirectory(file, depth + 1);
+                    }
+                    continue;
+                }
+                if (name.endsWith(MOVING_SUFFIX)) {
+                    leftovers.add(file);
+                    continue;
+                }
+                StorageFormat fileFormat = StorageFormat.byFileName(name);
+                if (fileFormat == null) {
+                    continue;
+                }
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(0, name.length() - fileFormat.getExtension().length()));
+                } catch (NumberFormatException exc) {
+                    // not a charta file
+                    continue;
+                }
+                Path target = layout.locate(id, fileFormat);
+                if (!file.equals(target)) {
+                    if (Files.exists(target)) {
+                        // a move only creates the target once the copy is complete, so the source is stale
+                        LOG.warn("Charta {} found both at {} and at {}, keeping the latter", id, file, target);
+                        leftovers.add(file);
+                        continue;
+                    }
+                    misplaced.put(id, file);
+                }
+                formats.put(id, fileFormat);
+            }
         }
-        File file = new File(generateFileName(id));
-        boolean created = file.createNewFile();
-        if (!created) {
-            throw new IOException("Cannot create file " + file.getPath());
+    }
+
+    // Moves misplaced chartas to the roots the ring assigns them. Runs before requests are served: a charta must not
+    // be written while it is copied. Every move is complete or not started after a crash, so it can be rerun.
+    public void rebalance() throws IOException {
+        for (Path leftover : leftovers) {
+            LOG.info("Deleting {} left by an interrupted move", leftover);
+            Files.deleteIfExists(leftover);
+        }
+        leftovers.clear();
+        if (!misplaced.isEmpty()) {
+            LOG.info("Moving {} chartas to their roots", misplaced.size());
+        }
+        for (Map.Entry<Integer, Path> entry : misplaced.entrySet()) {
+            int id = entry.getKey();
+            Path target = layout.locate(id, formats.get(id));
+            if (writeBack != null) {
+                writeBack.flush(id);
+            }
+            if (mappingCache != null) {
+                mappingCache.invalidate(id);
+            }
+            LOG.info("Moving charta {} from {} to {}", id, entry.getValue(), target);
+            move(entry.getValue(), target);
+            misplaced.remove(id);
+        }
+    }
+
+    // Across file systems the copy is forced and renamed into place before the source is deleted,
+    // so a file at the target is always complete.
+    private static void move(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch (AtomicMoveNotSupportedException exc) {
+            // another file system
+        }
+        Path copy = target.resolveSibling(target.getFileName() + MOVING_SUFFIX);
+        Files.copy(source, copy, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(source);
+    }
+
+    @Override
+    public int create(int width, int height) throws IOException {
+        // ids are never handed out twice, so the id is published only once its file and metadata are complete
+        int id = ids.next();
+        File file = new File(generateFileName(id, format));
+        boolean created = false;
+        try {
+            file.getParentFile().mkdirs();
+            if (!file.createNewFile()) {
+                throw new IOException("Cannot create file " + file.getPath());
+            }
+            if (format == StorageFormat.TILED) {
+                TiledCharta.create(file.toPath(), width, height);
+                metadata.put(id, TiledCharta.readMetadata(file.toPath()));
+            } else {
+                BmpCharta.create(file.toPath(), width, height);
+                metadata.put(id, ChartaMetadata.read(file.toPath()));
+            }
+            formats.put(id, format);
+            created = true;
+        } finally {
+            if (!created) {
+                metadata.remove(id);
+                file.delete();
+            }
         }
         return id;
     }
 
     @Override
     public boolean exists(int id) {
-        return Objects.requireNonNull(root.listFiles((dir, name) -> name.equals(id + ".bmp"))).length > 0;
+        return formats.containsKey(id);
     }
 
     @Override
     public File get(int id) throws FileNotFoundException {
-        if (!exists(id)) {
+        StorageFormat fileFormat = formats.get(id);
+        if (fileFormat == null) {
             throw new FileNotFoundException();
         }
-        return new File(generateFileName(id));
+        return new File(generateFileName(id, fileFormat));
+    }
+
+    @Override
+    public Charta open(int id) throws IOException {
+        Charta charta = openBuffered(id);
+        return new TrackingCharta(wal == null ? charta : wal.wrap(id, charta), (x, y, width, height) -> {
+            pyramid.markDirty(id, x, y, width, height);
+            versions.markModified(id, x, y, width, height);
+        });
+    }
+
+    @Override
+    public int getLevelCount(int id) throws IOException {
+        return getMetadata(id).getLevelCount();
+    }
+
+    @Override
+    public Charta openLevel(int id, int level) throws IOException {
+        if (level == 0) {
+            return open(id);
+        }
+        return pyramid.open(id, level, getMetadata(id));
+    }
+
+    private Charta openBuffered(int id) throws IOException {
+        Charta charta = openStorage(id);
+        return writeBack == null ? charta : writeBack.wrap(id, charta, getMetadata(id));
+    }
+
+    private Charta openStorage(int id) throws IOException {
+        ChartaMetadata chartaMetadata = getMetadata(id);
+        Path path = get(id).toPath();
+        if (chartaMetadata.getFormat() == StorageFormat.TILED) {
+            return TiledCharta.open(path, chartaMetadata);
+        }
+        if (mappingCache == null) {
+            return BmpCharta.open(path, chartaMetadata);
+        }
+        return mappingCache.acquire(id, path, chartaMetadata);
+    }
+
+    @Override
+    public ChartaMetadata getMetadata(int id) throws IOException {
+        ChartaMetadata cached = metadata.get(id);
+        if (cached != null) {
+            METADATA_HITS.increment();
+            return cached;
+        }
+        METADATA_MISSES.increment();
+        File file = get(id);
+        ChartaMetadata loaded = file.getName().endsWith(StorageFormat.TILED.getExtension())
+                                ? TiledCharta.readMetadata(file.toPath())
+                                : ChartaMetadata.read(file.toPath());
+        cached = metadata.putIfAbsent(id, loaded);
+        return cached != null ? cached : loaded;
+    }
+
+    @Override
+    public long getVersion(int id, int x, int y, int width, int height) throws IOException {
+        return versions.getVersion(id, getMetadata(id), x, y, width, height);
     }
 
     @Override
     public boolean delete(int id) {
-        return new File(generateFileName(id)).delete();
+        versions.discard(id);
+        pyramid.discard(id);
+        if (writeBack != null) {
+            writeBack.discard(id);
+        }
+        if (mappingCache != null) {
+            mappingCache.invalidate(id);
+        }
+        StorageFormat fileFormat = formats.remove(id);
+        metadata.remove(id);
+        if (fileFormat == null) {
+            return false;
+        }
+        boolean deleted = new File(generateFileName(id, fileFormat)).delete();
+        misplaced.remove(id);
+        return deleted;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        // the log is checkpointed first: that forces the chartas, write-back pages included
+        if (wal != null) {
+            wal.close();
+        }
+        if (writeBack != null) {
+            writeBack.close();
+        }
     }
 
-    private String generateFileName(int id) {
-        return root.getPath() + File.separator + id + ".bmp";
+    private String generateFileName(int id, StorageFormat fileFormat) {
+        Path found = misplaced.get(id);
+        return (found != null ? found : layout.locate(id, fileFormat)).toString();
     }
 }
@@ -0,0 +1,69 @@
+package ru.turbo.goose.storages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ids come from an atomic counter. Before the first id of a block is handed out, the end of the block is
+// persisted, so after a restart allocation continues past every id that may have been used. A crash only
+// skips the rest of the current block.
+class IdAllocator {
+    static final int BLOCK_SIZE = 1024;
+    private final Path watermark;
+    private final AtomicLong next;
+    private final Lock lock = new ReentrantLock();
+    private volatile long reserved;
+
+    IdAllocator(Path watermark, long minimum) throws IOException {
+        this.watermark = watermark;
+        long start = Math.max(1, minimum);
+        if (Files.exists(watermark)) {
+            try {
+                start = Math.max(start, Long.parseLong(Files.readString(watermark, StandardCharsets.US_ASCII).trim()));
+            } catch (NumberFormatException exc) {
+                // a torn watermark is never renamed into place, so this file was edited by hand; trust the index
+            }
+        }
+        next = new AtomicLong(start);
+        reserved = start;
+    }
+
+    int next() throws IOException {
+        long id = next.getAndIncrement();
+        if (id > Integer.MAX_VALUE) {
+            throw new IOException("Charta ids are exhausted");
+        }
+        if (id >= reserved) {
+            reserve(id);
+        }
+        return (int) id;
+    }
+
+    private void reserve(long id) throws IOException {
+        lock.lock();
+        try {
+            if (id < reserved) {
+                return;
+            }
+            long end = id + BLOCK_SIZE;
+            Path temp = watermark.resolveSibling(watermark.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(Long.toString(end).getBytes(StandardCharsets.US_ASCII)));
+                channel.force(true);
+            }
+            Files.move(temp, watermark, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            reserved = end;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
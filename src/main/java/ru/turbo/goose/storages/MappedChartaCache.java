@@ -0,0 +1,264 @@
+package ru.turbo.goose.storages;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+class MappedChartaCache {
+    static final long WINDOW_SIZE = 1L << 30;
+    private static final Counter HITS = Metrics.counter("charta.cache.requests", "cache", "mapping", "result", "hit");
+    private static final Counter MISSES = Metrics.counter("charta.cache.requests", "cache", "mapping", "result", "miss");
+    private static final Counter EVICTIONS = Metrics.counter("charta.cache.evictions", "cache", "mapping");
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException exc) {
+            // mappings will be released by the garbage collector instead
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long capacity;
+    private final Lock lock = new ReentrantLock();
+    private final Map<Integer, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+
+    MappedChartaCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    Charta acquire(int id, Path path, ChartaMetadata metadata) throws IOException {
+        lock.lock();
+        try {
+            Mapping mapping = mappings.get(id);
+            if (mapping != null) {
+                HITS.increment();
+            } else {
+                MISSES.increment();
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                                                            StandardOpenOption.WRITE)) {
+                    if (channel.size() > capacity) {
+                        return BmpCharta.open(path, metadata);
+                    }
+                    mapping = new Mapping(channel, metadata.getHeader());
+                }
+                mappings.put(id, mapping);
+                mappedBytes += mapping.size;
+                evict();
+            }
+            mapping.references++;
+            return new Lease(mapping, metadata);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate(int id) {
+        lock.lock();
+        try {
+            Mapping mapping = mappings.remove(id);
+            if (mapping != null) {
+                retire(mapping);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMappedBytes() {
+        lock.lock();
+        try {
+            return mappedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isCached(int id) {
+        lock.lock();
+        try {
+            return mappings.containsKey(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict() {
+        Iterator<Mapping> eldest = mappings.values().iterator();
+        while (mappedBytes > capacity && eldest.hasNext()) {
+            Mapping mapping = eldest.next();
+            eldest.remove();
+            retire(mapping);
+            EVICTIONS.increment();
+        }
+    }
+
+    private void retire(Mapping mapping) {
+        mappedBytes -= mapping.size;
+        mapping.retired = true;
+        if (mapping.references == 0) {
+            mapping.unmap();
+        }
+    }
+
+    private void release(Mapping mapping) {
+        lock.lock();
+        try {
+            mapping.references--;
+            if (mapping.retired && mapping.references == 0) {
+                mapping.unmap();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Mapping {
+        private final MappedByteBuffer[] windows;
+        private final BmpHeader header;
+        private final long size;
+        private int references;
+        private boolean retired;
+
+        Mapping(FileChannel channel, BmpHeader header) throws IOException {
+            this.header = header;
+            size = channel.size();
+            if (header.getFileSize() > size) {
+                throw new IOException("Charta file is truncated");
+            }
+            windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            try {
+                for (int i = 0; i < windows.length; i++) {
+                    long position = i * WINDOW_SIZE;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                                             Math.min(WINDOW_SIZE, size - position));
+                }
+            } catch (IOException exc) {
+                unmap();
+                throw exc;
+            }
+        }
+
+        void copy(long position, ByteBuffer buffer, boolean toFile) {
+            while (buffer.hasRemaining()) {
+                ByteBuffer window = windows[(int) (position / WINDOW_SIZE)].duplicate();
+                window.position((int) (position % WINDOW_SIZE));
+                int length = Math.min(window.remaining(), buffer.remaining());
+                window.limit(window.position() + length);
+                if (toFile) {
+                    ByteBuffer src = buffer.duplicate();
+                    src.limit(src.position() + length);
+                    window.put(src);
+                    buffer.position(buffer.position() + length);
+                } else {
+                    buffer.put(window);
+                }
+                position += length;
+            }
+        }
+
+        void force() {
+            for (MappedByteBuffer window : windows) {
+                window.force();
+            }
+        }
+
+        void unmap() {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            for (MappedByteBuffer window : windows) {
+                if (window == null) {
+                    continue;
+                }
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, window);
+                } catch (ReflectiveOperationException exc) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private class Lease implements Charta {
+        private final Mapping mapping;
+        private final ChartaMetadata metadata;
+        private boolean modified;
+        private boolean closed;
+
+        Lease(Mapping mapping, ChartaMetadata metadata) {
+            this.mapping = mapping;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public int getWidth() {
+            return mapping.header.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mapping.header.getHeight();
+        }
+
+        @Override
+        public void readRow(int x, int y, ByteBuffer dst) {
+            checkOpen();
+            mapping.copy(BmpCharta.spanOffset(mapping.header, x, y, dst.remaining()), dst, false);
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer src) {
+            checkOpen();
+            modified = true;
+            mapping.copy(BmpCharta.spanOffset(mapping.header, x, y, src.remaining()), src, true);
+        }
+
+        @Override
+        public void force() {
+            checkOpen();
+            mapping.force();
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Charta is already closed");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (modified) {
+                    metadata.markModified();
+                }
+                release(mapping);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.turbo.goose.storages;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Chartas are assigned to roots by consistent hashing on id: every root owns VIRTUAL_NODES points on a ring
+// derived from its path, so adding a root only takes over the ids nearest to its own points.
+// Inside a root the file lives in two levels of 256 hash buckets, e.g. 3f/a0/17.bmp.
+class ShardLayout {
+    static final int VIRTUAL_NODES = 128;
+    private final List<Path> roots;
+    private final TreeMap<Integer, Path> ring = new TreeMap<>();
+
+    ShardLayout(List<Path> roots) {
+        this.roots = List.copyOf(roots);
+        for (Path root : this.roots) {
+            String name = root.toAbsolutePath().normalize().toString();
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                CRC32 crc = new CRC32();
+                crc.update((name + "#" + i).getBytes(StandardCharsets.UTF_8));
+                // on a collision the point goes to the smaller path, whatever order the roots were listed in
+                ring.merge(mix((int) crc.getValue()), root, (x, y) -> x.compareTo(y) <= 0 ? x : y);
+            }
+        }
+    }
+
+    List<Path> getRoots() {
+        return roots;
+    }
+
+    Path getPrimaryRoot() {
+        return roots.get(0);
+    }
+
+    Path root(int id) {
+        Map.Entry<Integer, Path> owner = ring.ceilingEntry(mix(id));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    Path locate(int id, StorageFormat format) {
+        // the ring orders ids by the high bits of the hash, buckets use the low ones to spread evenly inside a root
+        int hash = mix(id);
+        return root(id).resolve(bucket(hash & 0xFF)).resolve(bucket((hash >>> 8) & 0xFF))
+                       .resolve(id + format.getExtension());
+    }
+
+    static boolean isBucket(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+               && Character.digit(name.charAt(1), 16) >= 0 && name.equals(name.toLowerCase());
+    }
+
+    private static String bucket(int value) {
+        return String.format("%02x", value);
+    }
+
+    // murmur3 finalizer
+    private static int mix(int value) {
+        value ^= value >>> 16;
+        value *= 0x85ebca6b;
+        value ^= value >>> 13;
+        value *= 0xc2b2ae35;
+        value ^= value >>> 16;
+        return value;
+    }
+}
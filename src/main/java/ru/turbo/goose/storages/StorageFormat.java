@@ -0,0 +1,25 @@
+package ru.turbo.goose.storages;
+
+public enum StorageFormat {
+    BMP(".bmp"),
+    TILED(".tiles");
+
+    private final String extension;
+
+    StorageFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    static StorageFormat byFileName(String name) {
+        for (StorageFormat format : values()) {
+            if (name.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
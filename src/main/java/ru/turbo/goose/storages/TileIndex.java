@@ -0,0 +1,94 @@
+package ru.turbo.goose.storages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+class TileIndex {
+    static final int ENTRY_SIZE = Long.BYTES;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final long indexOffset;
+    private final AtomicLongArray offsets;
+    private final Lock lock = new ReentrantLock();
+    private long end;
+
+    TileIndex(int width, int height, int tileSize, long indexOffset) {
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.indexOffset = indexOffset;
+        this.offsets = new AtomicLongArray(tilesX * tilesY);
+        this.end = getDataOffset();
+    }
+
+    void load(FileChannel channel) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(offsets.length() * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (entries.hasRemaining()) {
+            int read = channel.read(entries, indexOffset + entries.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        entries.flip();
+        for (int i = 0; entries.remaining() >= ENTRY_SIZE; i++) {
+            long offset = entries.getLong();
+            if (offset != 0) {
+                offsets.set(i, offset);
+                end = Math.max(end, offset + getTileBytes());
+            }
+        }
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    long getTileBytes() {
+        return (long) tileSize * tileSize * 3;
+    }
+
+    long getDataOffset() {
+        return indexOffset + (long) offsets.length() * ENTRY_SIZE;
+    }
+
+    long get(int tileX, int tileY) {
+        return offsets.get(tileY * tilesX + tileX);
+    }
+
+    long allocate(int tileX, int tileY, FileChannel channel) throws IOException {
+        int tile = tileY * tilesX + tileX;
+        lock.lock();
+        try {
+            long offset = offsets.get(tile);
+            if (offset != 0) {
+                return offset;
+            }
+            offset = end;
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN).putLong(offset).flip();
+            long position = indexOffset + (long) tile * ENTRY_SIZE;
+            while (entry.hasRemaining()) {
+                position += channel.write(entry, position);
+            }
+            end += getTileBytes();
+            offsets.set(tile, offset);
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getAllocatedBytes() {
+        lock.lock();
+        try {
+            return end - getDataOffset();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
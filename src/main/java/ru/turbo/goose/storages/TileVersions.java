@@ -0,0 +1,56 @@
+package ru.turbo.goose.storages;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Every tile keeps the clock value of its latest write. All tiles share one clock, so the newest stamp among
+// the tiles a region covers grows with any write to that region and can serve as the region's version.
+class TileVersions {
+    static final int TILE_SIZE = 256;
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<Integer, Tiles> chartas = new ConcurrentHashMap<>();
+
+    long getVersion(int id, ChartaMetadata metadata, int x, int y, int width, int height) {
+        // stamps are not persisted: a charta seen for the first time starts newer than anything handed out
+        Tiles tiles = chartas.computeIfAbsent(id, key -> new Tiles(metadata, clock.incrementAndGet()));
+        long version = 0;
+        for (int ty = y / TILE_SIZE; ty <= (y + height - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + width - 1) / TILE_SIZE; tx++) {
+                version = Math.max(version, tiles.stamps.get(ty * tiles.tilesPerRow + tx));
+            }
+        }
+        return version;
+    }
+
+    void markModified(int id, int x, int y, int width, int height) {
+        Tiles tiles = chartas.get(id);
+        if (tiles == null) {
+            return;
+        }
+        long stamp = clock.incrementAndGet();
+        for (int ty = y / TILE_SIZE; ty <= (y + height - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + width - 1) / TILE_SIZE; tx++) {
+                tiles.stamps.accumulateAndGet(ty * tiles.tilesPerRow + tx, stamp, Math::max);
+            }
+        }
+    }
+
+    void discard(int id) {
+        chartas.remove(id);
+    }
+
+    private static class Tiles {
+        private final int tilesPerRow;
+        private final AtomicLongArray stamps;
+
+        Tiles(ChartaMetadata metadata, long stamp) {
+            tilesPerRow = (metadata.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+            stamps = new AtomicLongArray(tilesPerRow * ((metadata.getHeight() + TILE_SIZE - 1) / TILE_SIZE));
+            for (int i = 0; i < stamps.length(); i++) {
+                stamps.set(i, stamp);
+            }
+        }
+    }
+}
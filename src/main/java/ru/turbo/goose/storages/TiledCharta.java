@@ -0,0 +1,178 @@
+package ru.turbo.goose.storages;
+
+import ru.turbo.goose.exceptions.BmpFormatException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class TiledCharta implements Charta {
+    static final int TILE_SIZE = 256;
+    static final int HEADER_SIZE = 32;
+    private static final int MAGIC = 0x4C544843;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final FileChannel channel;
+    private final ChartaMetadata metadata;
+    private final TileIndex index;
+    private boolean modified;
+
+    TiledCharta(FileChannel channel, ChartaMetadata metadata) {
+        this.channel = channel;
+        this.metadata = metadata;
+        this.index = metadata.getTileIndex();
+    }
+
+    public static TiledCharta open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new TiledCharta(channel, readMetadata(channel));
+        } catch (IOException exc) {
+            channel.close();
+            throw exc;
+        }
+    }
+
+    public static TiledCharta open(Path path, ChartaMetadata metadata) throws IOException {
+        return new TiledCharta(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE), metadata);
+    }
+
+    public static void create(Path path, int width, int height) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+              .putInt(FORMAT_VERSION)
+              .putInt(width)
+              .putInt(height)
+              .putInt(TILE_SIZE)
+              .position(HEADER_SIZE);
+        header.flip();
+        TileIndex index = new TileIndex(width, height, TILE_SIZE, HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.write(ByteBuffer.allocate(1), index.getDataOffset() - 1);
+        }
+    }
+
+    public static ChartaMetadata readMetadata(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readMetadata(channel);
+        }
+    }
+
+    static ChartaMetadata readMetadata(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new EOFException("Tiled charta header is truncated");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            throw new BmpFormatException("Not a tiled charta");
+        }
+        int width = header.getInt();
+        int height = header.getInt();
+        int tileSize = header.getInt();
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new BmpFormatException("Wrong tiled charta dimensions: " + width + "x" + height);
+        }
+        TileIndex index = new TileIndex(width, height, tileSize, HEADER_SIZE);
+        index.load(channel);
+        return new ChartaMetadata(width, height, index);
+    }
+
+    @Override
+    public int getWidth() {
+        return metadata.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return metadata.getHeight();
+    }
+
+    @Override
+    public void readRow(int x, int y, ByteBuffer dst) throws IOException {
+        checkSpan(x, y, dst.remaining());
+        int tileSize = index.getTileSize();
+        int end = x + dst.remaining() / BYTES_PER_PIXEL;
+        while (x < end) {
+            int length = (Math.min(end, (x / tileSize + 1) * tileSize) - x) * BYTES_PER_PIXEL;
+            long tile = index.get(x / tileSize, y / tileSize);
+            int limit = dst.limit();
+            dst.limit(dst.position() + length);
+            if (tile == 0) {
+                while (dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+            } else {
+                long position = tile + pixelOffset(x, y);
+                while (dst.hasRemaining()) {
+                    int read = channel.read(dst, position);
+                    if (read < 0) {
+                        while (dst.hasRemaining()) {
+                            dst.put((byte) 0);
+                        }
+                    } else {
+                        position += read;
+                    }
+                }
+            }
+            dst.limit(limit);
+            x += length / BYTES_PER_PIXEL;
+        }
+    }
+
+    @Override
+    public void writeRow(int x, int y, ByteBuffer src) throws IOException {
+        checkSpan(x, y, src.remaining());
+        modified = true;
+        int tileSize = index.getTileSize();
+        int end = x + src.remaining() / BYTES_PER_PIXEL;
+        while (x < end) {
+            int length = (Math.min(end, (x / tileSize + 1) * tileSize) - x) * BYTES_PER_PIXEL;
+            long position = index.allocate(x / tileSize, y / tileSize, channel) + pixelOffset(x, y);
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+            src.limit(limit);
+            x += length / BYTES_PER_PIXEL;
+        }
+    }
+
+    private long pixelOffset(int x, int y) {
+        int tileSize = index.getTileSize();
+        return ((long) (y % tileSize) * tileSize + x % tileSize) * BYTES_PER_PIXEL;
+    }
+
+    private void checkSpan(int x, int y, int length) {
+        int pixels = length / BYTES_PER_PIXEL;
+        if (x < 0 || y < 0 || y >= getHeight() || x + pixels > getWidth() || length % BYTES_PER_PIXEL != 0) {
+            throw new IndexOutOfBoundsException("Span (" + x + ";" + y + ") of " + pixels
+                                                + " pixels is out of charta bounds");
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (modified) {
+            metadata.markModified();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,68 @@
+package ru.turbo.goose.storages;
+
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Collects the bounding box of the rows written through it and reports it once, after the writes are visible
+class TrackingCharta implements Charta {
+    private final Charta charta;
+    private final ModificationListener listener;
+    private int fromX = Integer.MAX_VALUE;
+    private int fromY = Integer.MAX_VALUE;
+    private int toX = Integer.MIN_VALUE;
+    private int toY = Integer.MIN_VALUE;
+
+    interface ModificationListener {
+        void modified(int x, int y, int width, int height);
+    }
+
+    TrackingCharta(Charta charta, ModificationListener listener) {
+        this.charta = charta;
+        this.listener = listener;
+    }
+
+    @Override
+    public int getWidth() {
+        return charta.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return charta.getHeight();
+    }
+
+    @Override
+    public void readRow(int x, int y, ByteBuffer dst) throws IOException {
+        charta.readRow(x, y, dst);
+    }
+
+    @Override
+    public void writeRow(int x, int y, ByteBuffer src) throws IOException {
+        int length = src.remaining() / BmpHeader.BYTES_PER_PIXEL;
+        charta.writeRow(x, y, src);
+        synchronized (this) {
+            fromX = Math.min(fromX, x);
+            fromY = Math.min(fromY, y);
+            toX = Math.max(toX, x + length);
+            toY = Math.max(toY, y + 1);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        charta.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            charta.close();
+        } finally {
+            if (fromX < toX) {
+                listener.modified(fromX, fromY, toX - fromX, toY - fromY);
+            }
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package ru.turbo.goose.storages;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Every row written to a charta handle is appended to the current log segment, tagged with the handle's
+// transaction, and kept in memory. Closing the handle, i.e. finishing a fragment or a batch, appends a commit
+// record, waits until the segment is forced up to it and only then writes the rows to the charta, so a fragment
+// reaches the charta whole or not at all. Writers that commit together share one force (group commit). With the
+// write-back buffer under the log, applying the rows only fills pages and the charta files are updated
+// in the background; without it the rows are written in place before the writer is acknowledged.
+// When a segment grows past its limit a new one is started; once every transaction with records in the old one
+// has been applied, the chartas it touched are forced and it is deleted. On startup the remaining segments are
+// replayed in order, skipping the rows of transactions that never committed: records are absolute row writes,
+// so replaying a record that already reached the charta changes nothing.
+class WriteAheadLog implements Closeable {
+    static final String SEGMENT_PREFIX = "wal-";
+    static final String SEGMENT_SUFFIX = ".log";
+    // transaction, id, x, y, length of the pixels; the CRC32 of all of them follows the pixels.
+    // A commit record has no pixels.
+    static final int HEADER_SIZE = Long.BYTES + 4 * Integer.BYTES;
+    private static final int LENGTH_OFFSET = Long.BYTES + 3 * Integer.BYTES;
+    private static final Counter APPENDED_BYTES = Metrics.counter("charta.wal.appended.bytes");
+    private static final Counter COMMITS = Metrics.counter("charta.wal.commits");
+    private static final Counter SYNCS = Metrics.counter("charta.wal.syncs");
+    private final Path dir;
+    private final long segmentSize;
+    private final ChartaOpener opener;
+    // held shared by writers while appending, exclusively while switching segments
+    private final ReadWriteLock rollLock = new ReentrantReadWriteLock();
+    private final Lock appendLock = new ReentrantLock();
+    private final Lock syncLock = new ReentrantLock();
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+    // segments are all gone after a replay, so transaction numbers only need to be unique within a run
+    private final AtomicLong transactions = new AtomicLong();
+    private final ExecutorService checkpointer;
+    private Segment current;
+    private long nextSequence;
+    private volatile long written;
+    private volatile long durable;
+
+    WriteAheadLog(Path dir, long segmentSize, ChartaOpener opener) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.opener = opener;
+        Files.createDirectories(dir);
+        replay();
+        current = new Segment(dir.resolve(SEGMENT_PREFIX + nextSequence++ + SEGMENT_SUFFIX));
+        checkpointer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "charta-wal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    Charta wrap(int id, Charta charta) {
+        return new LoggedCharta(id, charta);
+    }
+
+    private void replay() throws IOException {
+        Map<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                               name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException exc) {
+                    // not a log segment
+                }
+            }
+        }
+        Set<Long> committed = new HashSet<>();
+        for (Path segment : segments.values()) {
+            scan(segment, (transaction, id, x, y, pixels) -> {
+                if (pixels == null) {
+                    committed.add(transaction);
+                }
+            });
+        }
+        Map<Integer, Charta> chartas = new HashMap<>();
+        try {
+            for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+                scan(segment.getValue(), (transaction, id, x, y, pixels) -> {
+                    if (pixels != null && committed.contains(transaction)) {
+                        apply(chartas, id, x, y, pixels);
+                    }
+                });
+                nextSequence = segment.getKey() + 1;
+            }
+            for (Charta charta : chartas.values()) {
+                if (charta != null) {
+                    charta.force();
+                }
+            }
+        } finally {
+            for (Charta charta : chartas.values()) {
+                if (charta != null) {
+                    charta.close();
+                }
+            }
+        }
+        // every segment goes before new records are logged, or an older one could be replayed over them
+        for (Path segment : segments.values()) {
+            Files.delete(segment);
+        }
+    }
+
+    private interface RecordHandler {
+        // pixels is null for a commit record
+        void handle(long transaction, int id, int x, int y, ByteBuffer pixels) throws IOException;
+    }
+
+    // Stops at the first torn or corrupt record: nothing after it was ever acknowledged
+    private static void scan(Path segment, RecordHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES);
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header)) {
+                    return;
+                }
+                long transaction = header.getLong(0);
+                int id = header.getInt(Long.BYTES);
+                int x = header.getInt(Long.BYTES + Integer.BYTES);
+                int y = header.getInt(Long.BYTES + 2 * Integer.BYTES);
+                int length = header.getInt(LENGTH_OFFSET);
+                if (length < 0 || length % BmpHeader.BYTES_PER_PIXEL != 0
+                        || length > channel.size() - channel.position() - Integer.BYTES) {
+                    return;
+                }
+                ByteBuffer pixels = ByteBuffer.allocate(length);
+                checksum.clear();
+                if (!readFully(channel, pixels) || !readFully(channel, checksum)
+                        || checksum.getInt(0) != checksum(header, pixels.flip())) {
+                    return;
+                }
+                handler.handle(transaction, id, x, y, length > 0 ? pixels : null);
+            }
+        }
+    }
+
+    private void apply(Map<Integer, Charta> chartas, int id, int x, int y, ByteBuffer pixels) throws IOException {
+        Charta charta = chartas.get(id);
+        if (charta == null && !chartas.containsKey(id)) {
+            try {
+                charta = opener.open(id);
+            } catch (FileNotFoundException exc) {
+                // deleted after the record was logged
+            }
+            chartas.put(id, charta);
+        }
+        if (charta != null && x >= 0 && y >= 0 && y < charta.getHeight()
+                && x + pixels.remaining() / BmpHeader.BYTES_PER_PIXEL <= charta.getWidth()) {
+            charta.writeRow(x, y, pixels);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(ByteBuffer header, ByteBuffer pixels) {
+        CRC32 crc = new CRC32();
+        crc.update(header.duplicate().position(0).limit(HEADER_SIZE));
+        crc.update(pixels.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private long append(long transaction, int id, int x, int y, ByteBuffer pixels) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(transaction).putInt(id).putInt(x).putInt(y).putInt(pixels.remaining()).flip();
+        ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES);
+        checksum.putInt(checksum(header, pixels)).flip();
+        ByteBuffer[] record = {header, pixels, checksum};
+        long size = HEADER_SIZE + pixels.remaining() + Integer.BYTES;
+        long end;
+        boolean full;
+        appendLock.lock();
+        try {
+            while (record[2].hasRemaining()) {
+                current.channel.write(record);
+            }
+            current.ids.add(id);
+            current.size += size;
+            written += size;
+            end = written;
+            full = current.size >= segmentSize;
+        } finally {
+            appendLock.unlock();
+        }
+        APPENDED_BYTES.increment(size);
+        if (full && checkpointScheduled.compareAndSet(false, true)) {
+            checkpointer.execute(this::checkpointQuietly);
+        }
+        return end;
+    }
+
+    // Waits until the log is durable up to the given position. Whoever gets the lock first forces everything
+    // appended so far, so the writers queued behind it usually find their records already durable.
+    private void commit(long position) throws IOException {
+        COMMITS.increment();
+        if (durable >= position) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (durable >= position) {
+                return;
+            }
+            long target = written;
+            current.channel.force(false);
+            durable = target;
+            SYNCS.increment();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException exc) {
+            // the old segment stays on disk and is replayed on the next start
+        } finally {
+            checkpointScheduled.set(false);
+        }
+    }
+
+    void checkpoint() throws IOException {
+        Segment old;
+        rollLock.writeLock().lock();
+        try {
+            syncLock.lock();
+            try {
+                current.channel.force(false);
+                durable = written;
+                old = current;
+                current = new Segment(dir.resolve(SEGMENT_PREFIX + nextSequence++ + SEGMENT_SUFFIX));
+            } finally {
+                syncLock.unlock();
+            }
+        } finally {
+            rollLock.writeLock().unlock();
+        }
+        // once every record of the old segment has been applied, forcing its chartas makes it redundant
+        old.awaitApplied();
+        old.channel.close();
+        for (int id : old.ids) {
+            try (Charta charta = opener.open(id)) {
+                charta.force();
+            } catch (FileNotFoundException | NoSuchFileException exc) {
+                // deleted since
+            }
+        }
+        Files.delete(old.path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        current.channel.close();
+        Files.delete(current.path);
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        private final Lock lock = new ReentrantLock();
+        private final Condition applied = lock.newCondition();
+        private long size;
+        // open transactions with records here
+        private int pending;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        void join() {
+            lock.lock();
+            try {
+                pending++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void leave() {
+            lock.lock();
+            try {
+                if (--pending == 0) {
+                    applied.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void awaitApplied() throws InterruptedIOException {
+            lock.lock();
+            try {
+                while (pending > 0) {
+                    applied.await();
+                }
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for open transactions");
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class PendingRow {
+        private final int x;
+        private final int y;
+        private final ByteBuffer pixels;
+
+        PendingRow(int x, int y, ByteBuffer pixels) {
+            this.x = x;
+            this.y = y;
+            this.pixels = pixels;
+        }
+    }
+
+    private class LoggedCharta implements Charta {
+        private final int id;
+        private final Charta charta;
+        private final long transaction = transactions.incrementAndGet();
+        // rows may be written from several band threads at once
+        private final AtomicLong position = new AtomicLong();
+        private final Queue<PendingRow> rows = new ConcurrentLinkedQueue<>();
+        private final Set<Segment> segments = ConcurrentHashMap.newKeySet();
+        private volatile boolean failed;
+
+        LoggedCharta(int id, Charta charta) {
+            this.id = id;
+            this.charta = charta;
+        }
+
+        @Override
+        public int getWidth() {
+            return charta.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return charta.getHeight();
+        }
+
+        // the rows written through this handle are not visible before it is closed
+        @Override
+        public void readRow(int x, int y, ByteBuffer dst) throws IOException {
+            charta.readRow(x, y, dst);
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer src) throws IOException {
+            int length = src.remaining() / BmpHeader.BYTES_PER_PIXEL;
+            if (x < 0 || y < 0 || y >= getHeight() || x + length > getWidth()
+                    || src.remaining() % BmpHeader.BYTES_PER_PIXEL != 0) {
+                throw new IndexOutOfBoundsException("Span (" + x + ";" + y + ") of " + length
+                                                    + " pixels is out of charta bounds");
+            }
+            if (length == 0) {
+                return;
+            }
+            ByteBuffer pixels = ByteBuffer.allocate(src.remaining()).put(src).flip();
+            rollLock.readLock().lock();
+            try {
+                if (segments.add(current)) {
+                    current.join();
+                }
+                position.accumulateAndGet(append(transaction, id, x, y, pixels.duplicate()), Math::max);
+            } catch (IOException | RuntimeException exc) {
+                failed = true;
+                throw exc;
+            } finally {
+                rollLock.readLock().unlock();
+            }
+            rows.add(new PendingRow(x, y, pixels));
+        }
+
+        @Override
+        public void force() throws IOException {
+            commit(position.get());
+            charta.force();
+        }
+
+        // A transaction with a row that could not be logged is dropped whole: none of its rows reached the charta
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!rows.isEmpty() && !failed) {
+                    long end;
+                    rollLock.readLock().lock();
+                    try {
+                        end = append(transaction, id, 0, 0, ByteBuffer.allocate(0));
+                    } finally {
+                        rollLock.readLock().unlock();
+                    }
+                    commit(end);
+                    for (PendingRow row : rows) {
+                        charta.writeRow(row.x, row.y, row.pixels);
+                    }
+                }
+            } finally {
+                try {
+                    charta.close();
+                } finally {
+                    for (Segment segment : segments) {
+                        segment.leave();
+                    }
+                }
+            }
+        }
+    }
+}
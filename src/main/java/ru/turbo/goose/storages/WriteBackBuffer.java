@@ -0,0 +1,481 @@
+package ru.turbo.goose.storages;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import ru.turbo.goose.utils.BmpHeader;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class WriteBackBuffer implements Closeable {
+    static final int PAGE_WIDTH = 256;
+    static final int PAGE_HEIGHT = 64;
+    static final int PAGE_BYTES = PAGE_WIDTH * PAGE_HEIGHT * BmpHeader.BYTES_PER_PIXEL;
+    private static final Counter FLUSHED_PAGES = Metrics.counter("charta.write-back.flushed.pages");
+    private final Map<Integer, ChartaPages> chartas = new ConcurrentHashMap<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Lock lock = new ReentrantLock();
+    // buffered pages by the charta they belong to, least recently written first
+    private final Map<Page, Integer> recentPages = new LinkedHashMap<>(16, 0.75f, true);
+    // released page buffers, kept while they and the buffered pages fit in the capacity and the page
+    // a write allocates before relieving the buffer
+    private final Deque<ByteBuffer> freePages = new ArrayDeque<>();
+    private final long capacity;
+    private final long flushIntervalNanos;
+    private final boolean fsync;
+    private final ChartaOpener opener;
+    private final ScheduledExecutorService flusher;
+
+    WriteBackBuffer(long capacity, long flushIntervalMillis, boolean fsync, ChartaOpener opener) {
+        this.capacity = capacity;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.fsync = fsync;
+        this.opener = opener;
+        flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "charta-write-back");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, flushIntervalMillis / 2);
+        flusher.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+        Metrics.gauge("charta.write-back.buffered", bufferedBytes);
+    }
+
+    Charta wrap(int id, Charta charta, ChartaMetadata metadata) {
+        return new BufferedCharta(id, charta, metadata);
+    }
+
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    void discard(int id) {
+        ChartaPages pages = chartas.remove(id);
+        if (pages == null) {
+            return;
+        }
+        pages.lock.writeLock().lock();
+        try {
+            for (Page page : pages.pages.values()) {
+                release(page);
+            }
+            pages.pages.clear();
+        } finally {
+            pages.lock.writeLock().unlock();
+        }
+    }
+
+    void flush(int id) throws IOException {
+        ChartaPages pages = chartas.get(id);
+        if (pages != null) {
+            try (Charta charta = opener.open(id)) {
+                flush(pages, charta, Long.MAX_VALUE);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        IOException failure = null;
+        for (int id : new ArrayList<>(chartas.keySet())) {
+            try {
+                flush(id);
+            } catch (FileNotFoundException exc) {
+                discard(id);
+            } catch (IOException exc) {
+                failure = exc;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushExpired() {
+        flushOlderThan(System.nanoTime() - flushIntervalNanos);
+    }
+
+    private void relieve() {
+        while (bufferedBytes.get() > capacity) {
+            Map.Entry<Page, Integer> eldest = eldestPage();
+            if (eldest == null) {
+                return;
+            }
+            int id = eldest.getValue();
+            ChartaPages pages = chartas.get(id);
+            if (pages == null) {
+                release(eldest.getKey());
+                continue;
+            }
+            try (Charta charta = opener.open(id)) {
+                // the charta is open anyway, so its next least recently written pages go with it
+                Page page = eldest.getKey();
+                while (page != null) {
+                    flush(pages, page, charta);
+                    eldest = bufferedBytes.get() > capacity ? eldestPage() : null;
+                    page = eldest != null && eldest.getValue() == id ? eldest.getKey() : null;
+                }
+            } catch (FileNotFoundException exc) {
+                discard(id);
+            } catch (IOException exc) {
+                // pages stay dirty and are retried by the flusher
+                return;
+            }
+        }
+    }
+
+    private Map.Entry<Page, Integer> eldestPage() {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Page, Integer>> iterator = recentPages.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            Map.Entry<Page, Integer> eldest = iterator.next();
+            return Map.entry(eldest.getKey(), eldest.getValue());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean flushOlderThan(long deadline) {
+        boolean flushed = false;
+        for (Map.Entry<Integer, ChartaPages> entry : chartas.entrySet()) {
+            ChartaPages pages = entry.getValue();
+            if (pages.oldestDirtyTime() >= deadline) {
+                continue;
+            }
+            try (Charta charta = opener.open(entry.getKey())) {
+                flushed |= flush(pages, charta, deadline) > 0;
+            } catch (FileNotFoundException exc) {
+                discard(entry.getKey());
+            } catch (IOException exc) {
+                // pages stay dirty and are retried on the next round
+            }
+        }
+        return flushed;
+    }
+
+    private int flush(ChartaPages pages, Charta charta, long deadline) throws IOException {
+        int flushed = 0;
+        pages.lock.writeLock().lock();
+        try {
+            for (Page page : new ArrayList<>(pages.pages.values())) {
+                if (page.dirtySince < deadline) {
+                    page.flush(charta);
+                    pages.pages.remove(page.key);
+                    release(page);
+                    flushed++;
+                }
+            }
+            if (flushed > 0 && fsync) {
+                charta.force();
+            }
+        } finally {
+            pages.lock.writeLock().unlock();
+        }
+        FLUSHED_PAGES.increment(flushed);
+        return flushed;
+    }
+
+    private void flush(ChartaPages pages, Page page, Charta charta) throws IOException {
+        pages.lock.writeLock().lock();
+        try {
+            // another thread may have flushed it meanwhile
+            if (pages.pages.get(page.key) != page) {
+                release(page);
+                return;
+            }
+            page.flush(charta);
+            pages.pages.remove(page.key);
+            release(page);
+            if (fsync) {
+                charta.force();
+            }
+            FLUSHED_PAGES.increment();
+        } finally {
+            pages.lock.writeLock().unlock();
+        }
+    }
+
+    private ByteBuffer acquirePage() {
+        lock.lock();
+        try {
+            ByteBuffer pixels = freePages.pollFirst();
+            return pixels != null ? pixels : ByteBuffer.allocateDirect(PAGE_BYTES);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Page page) {
+        lock.lock();
+        try {
+            if (recentPages.remove(page) == null) {
+                return;
+            }
+            long buffered = bufferedBytes.addAndGet(-PAGE_BYTES);
+            if (buffered + (long) freePages.size() * PAGE_BYTES <= capacity) {
+                freePages.offerFirst(page.pixels);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void touch(Page page) {
+        lock.lock();
+        try {
+            recentPages.get(page);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class ChartaPages {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<Integer, Page> pages = new ConcurrentHashMap<>();
+
+        long oldestDirtyTime() {
+            long oldest = Long.MAX_VALUE;
+            for (Page page : pages.values()) {
+                oldest = Math.min(oldest, page.dirtySince);
+            }
+            return oldest;
+        }
+    }
+
+    // A rectangle of up to PAGE_WIDTH x PAGE_HEIGHT pixels; each row keeps one dirty span [from; to)
+    private static class Page {
+        private final int key;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final ByteBuffer pixels;
+        private final int[] dirtyFrom;
+        private final int[] dirtyTo;
+        private final long dirtySince = System.nanoTime();
+        private final Lock lock = new ReentrantLock();
+
+        // pixels may be a recycled buffer: only the dirty spans are ever read back
+        Page(int key, int x, int y, int width, int height, ByteBuffer pixels) {
+            this.key = key;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.pixels = pixels;
+            dirtyFrom = new int[height];
+            dirtyTo = new int[height];
+            Arrays.fill(dirtyFrom, -1);
+        }
+
+        void write(Charta charta, int row, int from, ByteBuffer src) throws IOException {
+            lock.lock();
+            try {
+                int to = from + src.remaining() / BmpHeader.BYTES_PER_PIXEL;
+                if (dirtyFrom[row] < 0) {
+                    dirtyFrom[row] = from;
+                    dirtyTo[row] = to;
+                } else {
+                    if (to < dirtyFrom[row]) {
+                        charta.readRow(x + to, y + row, slice(row, to, dirtyFrom[row]));
+                    } else if (from > dirtyTo[row]) {
+                        charta.readRow(x + dirtyTo[row], y + row, slice(row, dirtyTo[row], from));
+                    }
+                    dirtyFrom[row] = Math.min(from, dirtyFrom[row]);
+                    dirtyTo[row] = Math.max(to, dirtyTo[row]);
+                }
+                slice(row, from, to).put(src);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void overlay(int row, int from, ByteBuffer dst) {
+            lock.lock();
+            try {
+                if (dirtyFrom[row] < 0) {
+                    return;
+                }
+                int to = from + dst.remaining() / BmpHeader.BYTES_PER_PIXEL;
+                int overlapFrom = Math.max(from, dirtyFrom[row]);
+                int overlapTo = Math.min(to, dirtyTo[row]);
+                if (overlapFrom < overlapTo) {
+                    ByteBuffer target = dst.duplicate();
+                    target.position(dst.position() + (overlapFrom - from) * BmpHeader.BYTES_PER_PIXEL);
+                    target.put(slice(row, overlapFrom, overlapTo));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void flush(Charta charta) throws IOException {
+            lock.lock();
+            try {
+                for (int row = 0; row < dirtyFrom.length; row++) {
+                    if (dirtyFrom[row] >= 0) {
+                        charta.writeRow(x + dirtyFrom[row], y + row, slice(row, dirtyFrom[row], dirtyTo[row]));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private ByteBuffer slice(int row, int from, int to) {
+            ByteBuffer slice = pixels.duplicate();
+            int offset = (row * width + from) * BmpHeader.BYTES_PER_PIXEL;
+            slice.limit(offset + (to - from) * BmpHeader.BYTES_PER_PIXEL).position(offset);
+            return slice;
+        }
+    }
+
+    private class BufferedCharta implements Charta {
+        private final int id;
+        private final Charta charta;
+        private final ChartaMetadata metadata;
+        private final int pagesPerRow;
+        private boolean modified;
+
+        BufferedCharta(int id, Charta charta, ChartaMetadata metadata) {
+            this.id = id;
+            this.charta = charta;
+            this.metadata = metadata;
+            pagesPerRow = (charta.getWidth() + PAGE_WIDTH - 1) / PAGE_WIDTH;
+        }
+
+        @Override
+        public int getWidth() {
+            return charta.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return charta.getHeight();
+        }
+
+        @Override
+        public void readRow(int x, int y, ByteBuffer dst) throws IOException {
+            ChartaPages pages = chartas.get(id);
+            if (pages == null) {
+                charta.readRow(x, y, dst);
+                return;
+            }
+            ByteBuffer target = dst.duplicate();
+            pages.lock.readLock().lock();
+            try {
+                charta.readRow(x, y, dst);
+                int to = x + target.remaining() / BmpHeader.BYTES_PER_PIXEL;
+                for (int px = x / PAGE_WIDTH * PAGE_WIDTH; px < to; px += PAGE_WIDTH) {
+                    Page page = pages.pages.get(pageKey(px, y));
+                    if (page != null) {
+                        int from = Math.max(x, px);
+                        ByteBuffer span = target.duplicate();
+                        span.position(target.position() + (from - x) * BmpHeader.BYTES_PER_PIXEL);
+                        span.limit(span.position() + (Math.min(to, px + PAGE_WIDTH) - from)
+                                                     * BmpHeader.BYTES_PER_PIXEL);
+                        page.overlay(y - page.y, from - px, span);
+                    }
+                }
+            } finally {
+                pages.lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void writeRow(int x, int y, ByteBuffer src) throws IOException {
+            int length = src.remaining() / BmpHeader.BYTES_PER_PIXEL;
+            if (x < 0 || y < 0 || y >= getHeight() || x + length > getWidth()
+                    || src.remaining() % BmpHeader.BYTES_PER_PIXEL != 0) {
+                throw new IndexOutOfBoundsException("Span (" + x + ";" + y + ") of " + length
+                                                    + " pixels is out of charta bounds");
+            }
+            modified = true;
+            ChartaPages pages = chartas.computeIfAbsent(id, key -> new ChartaPages());
+            pages.lock.readLock().lock();
+            try {
+                int to = x + length;
+                for (int px = x / PAGE_WIDTH * PAGE_WIDTH; px < to; px += PAGE_WIDTH) {
+                    int from = Math.max(x, px);
+                    ByteBuffer span = src.duplicate();
+                    span.position(src.position() + (from - x) * BmpHeader.BYTES_PER_PIXEL);
+                    span.limit(span.position() + (Math.min(to, px + PAGE_WIDTH) - from) * BmpHeader.BYTES_PER_PIXEL);
+                    Page page = pages.pages.computeIfAbsent(pageKey(px, y), key -> allocate(key));
+                    page.write(charta, y - page.y, from - px, span);
+                    touch(page);
+                }
+                src.position(src.limit());
+            } finally {
+                pages.lock.readLock().unlock();
+            }
+            relieve();
+        }
+
+        private Page allocate(int key) {
+            int px = key % pagesPerRow * PAGE_WIDTH;
+            int py = key / pagesPerRow * PAGE_HEIGHT;
+            Page page = new Page(key, px, py, Math.min(PAGE_WIDTH, getWidth() - px),
+                                 Math.min(PAGE_HEIGHT, getHeight() - py), acquirePage());
+            lock.lock();
+            try {
+                recentPages.put(page, id);
+                bufferedBytes.addAndGet(PAGE_BYTES);
+            } finally {
+                lock.unlock();
+            }
+            return page;
+        }
+
+        private int pageKey(int x, int y) {
+            return y / PAGE_HEIGHT * pagesPerRow + x / PAGE_WIDTH;
+        }
+
+        @Override
+        public void force() throws IOException {
+            ChartaPages pages = chartas.get(id);
+            if (pages != null) {
+                flush(pages, charta, Long.MAX_VALUE);
+            }
+            charta.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (modified) {
+                    metadata.markModified();
+                    if (fsync) {
+                        force();
+                    }
+                }
+            } finally {
+                charta.close();
+            }
+        }
+    }
+}
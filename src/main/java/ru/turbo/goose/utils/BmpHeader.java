@@ -0,0 +1,122 @@
+package ru.turbo.goose.utils;
+
+import ru.turbo.goose.exceptions.BmpFormatException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class BmpHeader {
+    public static final int FILE_HEADER_SIZE = 14;
+    public static final int INFO_HEADER_SIZE = 40;
+    public static final int SIZE = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+    public static final int BYTES_PER_PIXEL = 3;
+    private static final short SIGNATURE = 0x4D42;
+    private static final short BITS_PER_PIXEL = 24;
+    private static final int BI_RGB = 0;
+    // the widest image whose padded row length still fits in an int
+    private static final int MAX_WIDTH = (Integer.MAX_VALUE - 3) / BYTES_PER_PIXEL;
+
+    private final int width;
+    private final int height;
+    private final boolean topDown;
+    private final int dataOffset;
+
+    public BmpHeader(int width, int height, boolean topDown, int dataOffset) {
+        this.width = width;
+        this.height = height;
+        this.topDown = topDown;
+        this.dataOffset = dataOffset;
+    }
+
+    public static BmpHeader read(ByteBuffer buffer) throws BmpFormatException {
+        if (buffer.remaining() < SIZE) {
+            throw new BmpFormatException("BMP header is truncated");
+        }
+        ByteBuffer header = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getShort(0) != SIGNATURE) {
+            throw new BmpFormatException("Not a BMP image");
+        }
+        int dataOffset = header.getInt(10);
+        int infoSize = header.getInt(14);
+        int width = header.getInt(18);
+        int height = header.getInt(22);
+        short planes = header.getShort(26);
+        short bitsPerPixel = header.getShort(28);
+        int compression = header.getInt(30);
+        if (infoSize < INFO_HEADER_SIZE || dataOffset < FILE_HEADER_SIZE + infoSize) {
+            throw new BmpFormatException("Unsupported BMP info header of size " + infoSize);
+        }
+        if (planes != 1) {
+            throw new BmpFormatException("Wrong number of BMP color planes: " + planes);
+        }
+        if (bitsPerPixel != BITS_PER_PIXEL || compression != BI_RGB) {
+            throw new BmpFormatException("Only uncompressed 24-bit BMP is supported");
+        }
+        if (width <= 0 || width > MAX_WIDTH || height == 0 || height == Integer.MIN_VALUE) {
+            throw new BmpFormatException("Wrong BMP dimensions: " + width + "x" + height);
+        }
+        buffer.position(buffer.position() + SIZE);
+        return new BmpHeader(width, Math.abs(height), height < 0, dataOffset);
+    }
+
+    public static BmpHeader bottomUp(int width, int height) {
+        return new BmpHeader(width, height, false, SIZE);
+    }
+
+    public void write(ByteBuffer buffer) {
+        ByteBuffer header = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(SIGNATURE)
+              .putInt((int) getFileSize())
+              .putInt(0)
+              .putInt(dataOffset)
+              .putInt(INFO_HEADER_SIZE)
+              .putInt(width)
+              .putInt(topDown ? -height : height)
+              .putShort((short) 1)
+              .putShort(BITS_PER_PIXEL)
+              .putInt(BI_RGB)
+              .putInt((int) getImageSize())
+              .putInt(0)
+              .putInt(0)
+              .putInt(0)
+              .putInt(0);
+        buffer.position(buffer.position() + SIZE);
+    }
+
+    public static int rowStride(int width) {
+        return (width * BYTES_PER_PIXEL + 3) & ~3;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isTopDown() {
+        return topDown;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getRowStride() {
+        return rowStride(width);
+    }
+
+    public long getImageSize() {
+        return (long) getRowStride() * height;
+    }
+
+    public long getFileSize() {
+        return dataOffset + getImageSize();
+    }
+
+    public long rowOffset(int y) {
+        int fileRow = topDown ? y : height - 1 - y;
+        return dataOffset + (long) fileRow * getRowStride();
+    }
+}
@@ -0,0 +1,43 @@
+package ru.turbo.goose.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public class BmpImageEncoder implements ImageEncoder {
+    private final OutputStream out;
+    private final int rowStride;
+
+    public BmpImageEncoder(int width, int height, OutputStream out) throws IOException {
+        this.out = out;
+        BmpHeader header = BmpHeader.bottomUp(width, height);
+        rowStride = header.getRowStride();
+        byte[] bytes = new byte[BmpHeader.SIZE];
+        header.write(ByteBuffer.wrap(bytes));
+        out.write(bytes);
+    }
+
+    @Override
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return true;
+    }
+
+    @Override
+    public void writeRows(byte[] rows, int count) throws IOException {
+        out.write(rows, 0, count * rowStride);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,79 @@
+package ru.turbo.goose.utils;
+
+import ru.turbo.goose.exceptions.BmpFormatException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class BmpRowReader {
+    private final InputStream input;
+    private final BmpHeader header;
+    private final int padding;
+    private final byte[] paddingBytes = new byte[3];
+    private int rowsRead;
+
+    public BmpRowReader(InputStream input) throws IOException {
+        this.input = input;
+        header = BmpHeader.read(ByteBuffer.wrap(readFully(BmpHeader.SIZE)));
+        skipFully(header.getDataOffset() - BmpHeader.SIZE);
+        padding = header.getRowStride() - header.getWidth() * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    public BmpHeader getHeader() {
+        return header;
+    }
+
+    public boolean hasNextRow() {
+        return rowsRead < header.getHeight();
+    }
+
+    public int nextRowIndex() {
+        return header.isTopDown() ? rowsRead : header.getHeight() - 1 - rowsRead;
+    }
+
+    public int readRow(byte[] dst) throws IOException {
+        return readRow(dst, 0);
+    }
+
+    // reads the pixels straight into dst, so callers can target their own row layout without an extra copy
+    public int readRow(byte[] dst, int offset) throws IOException {
+        int y = nextRowIndex();
+        int length = header.getWidth() * BmpHeader.BYTES_PER_PIXEL;
+        if (input.readNBytes(dst, offset, length) < length) {
+            throw new BmpFormatException("BMP pixel data is truncated");
+        }
+        // InputStream.skip allocates a buffer per call, and padding is skipped once per row
+        if (padding > 0 && input.readNBytes(paddingBytes, 0, padding) < padding) {
+            throw new BmpFormatException("BMP pixel data is truncated");
+        }
+        rowsRead++;
+        return y;
+    }
+
+    public void skipRow() throws IOException {
+        skipFully(header.getRowStride());
+        rowsRead++;
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = input.readNBytes(length);
+        if (bytes.length < length) {
+            throw new BmpFormatException("BMP header is truncated");
+        }
+        return bytes;
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new BmpFormatException("BMP pixel data is truncated");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ru.turbo.goose.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Transfer buffers in power-of-two size classes, so large requests reuse arrays instead of producing
+// humongous garbage. Leased arrays keep their previous contents. Released arrays are kept while the free
+// lists hold less than `capacity` bytes; requests above the largest class are allocated and dropped as usual.
+@Component
+public class BufferPool {
+    static final int MIN_CLASS_SHIFT = 12;
+    static final int MAX_CLASS_SHIFT = 24;
+    private static final Counter HITS = Metrics.counter("charta.cache.requests", "cache", "buffer", "result", "hit");
+    private static final Counter MISSES = Metrics.counter("charta.cache.requests", "cache", "buffer", "result", "miss");
+    private final long capacity;
+    private final Deque<byte[]>[] free;
+    private final AtomicLong freeBytes = new AtomicLong();
+    private final Set<Lease> leased;
+
+    public BufferPool() {
+        this(64L * 1024 * 1024, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Autowired
+    public BufferPool(@Value("${chartographer.buffer-pool.size:67108864}") long capacity,
+                      @Value("${chartographer.buffer-pool.leak-detection:false}") boolean leakDetection) {
+        this.capacity = capacity;
+        free = new Deque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedDeque<>();
+        }
+        leased = leakDetection ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    public Lease acquire(int size) {
+        int sizeClass = sizeClass(size);
+        byte[] array = null;
+        if (sizeClass >= 0) {
+            array = free[sizeClass].pollFirst();
+            if (array != null) {
+                freeBytes.addAndGet(-array.length);
+                HITS.increment();
+            } else {
+                MISSES.increment();
+                array = new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+            }
+        } else {
+            array = new byte[size];
+        }
+        Lease lease = new Lease(array, sizeClass);
+        if (leased != null) {
+            lease.origin = new Throwable("Buffer of " + size + " bytes leased here");
+            leased.add(lease);
+        }
+        return lease;
+    }
+
+    // fails with the acquisition stack of a buffer that was never released; only meaningful with leak detection
+    public void checkLeaks() {
+        if (leased == null) {
+            return;
+        }
+        leased.stream().findAny().ifPresent(lease -> {
+            throw new IllegalStateException(leased.size() + " buffers were not released", lease.origin);
+        });
+    }
+
+    long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+    private void release(Lease lease) {
+        if (lease.released) {
+            throw new IllegalStateException("Buffer released twice", lease.origin);
+        }
+        lease.released = true;
+        if (leased != null) {
+            leased.remove(lease);
+        }
+        if (lease.sizeClass < 0) {
+            return;
+        }
+        if (freeBytes.addAndGet(lease.array.length) > capacity) {
+            freeBytes.addAndGet(-lease.array.length);
+            return;
+        }
+        free[lease.sizeClass].offerFirst(lease.array);
+    }
+
+    private static int sizeClass(int size) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
+    }
+
+    public class Lease implements AutoCloseable {
+        private final byte[] array;
+        private final int sizeClass;
+        private Throwable origin;
+        private boolean released;
+
+        private Lease(byte[] array, int sizeClass) {
+            this.array = array;
+            this.sizeClass = sizeClass;
+        }
+
+        public byte[] array() {
+            return array;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
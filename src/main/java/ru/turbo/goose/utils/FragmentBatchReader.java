@@ -0,0 +1,119 @@
+package ru.turbo.goose.utils;
+
+import ru.turbo.goose.exceptions.BmpFormatException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Frame layout: x, y, width, height, length (big-endian int32) followed by `length` bytes of BMP
+public class FragmentBatchReader {
+    public static final int FRAME_HEADER_SIZE = 5 * Integer.BYTES;
+
+    private final DataInputStream input;
+    private final FrameInputStream frame = new FrameInputStream();
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+
+    public FragmentBatchReader(InputStream input) {
+        this.input = new DataInputStream(input);
+    }
+
+    public boolean next() throws IOException {
+        frame.skipRemaining();
+        int first = input.read();
+        if (first < 0) {
+            return false;
+        }
+        try {
+            x = (first << 24) | (input.readUnsignedByte() << 16) | input.readUnsignedShort();
+            y = input.readInt();
+            width = input.readInt();
+            height = input.readInt();
+            int length = input.readInt();
+            if (length < 0) {
+                throw new BmpFormatException("Negative fragment length: " + length);
+            }
+            frame.remaining = length;
+        } catch (EOFException exc) {
+            throw new BmpFormatException("Fragment frame header is truncated", exc);
+        }
+        return true;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public InputStream getData() {
+        return frame;
+    }
+
+    private class FrameInputStream extends InputStream {
+        private long remaining;
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = input.read();
+            if (b < 0) {
+                throw new BmpFormatException("Fragment data is truncated");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = input.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new BmpFormatException("Fragment data is truncated");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = input.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(input.available(), remaining);
+        }
+
+        void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                if (skip(remaining) <= 0 && read() < 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ru.turbo.goose.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Rows are handed over in getRowStride()-sized slots holding BGR pixels, in bottom-up order if isBottomUp().
+// close() releases the encoder's native state whether or not the image was finished, and leaves the stream open.
+public interface ImageEncoder extends Closeable {
+    int getRowStride();
+    boolean isBottomUp();
+    void writeRows(byte[] rows, int count) throws IOException;
+    void finish() throws IOException;
+}
@@ -0,0 +1,27 @@
+package ru.turbo.goose.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public enum ImageFormat {
+    BMP("image/bmp"),
+    PNG("image/png");
+
+    private final String mediaType;
+
+    ImageFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public ImageEncoder newEncoder(int width, int height, OutputStream out, BufferPool bufferPool)
+            throws IOException {
+        if (this == PNG) {
+            return new PngImageEncoder(width, height, out, bufferPool);
+        }
+        return new BmpImageEncoder(width, height, out);
+    }
+}
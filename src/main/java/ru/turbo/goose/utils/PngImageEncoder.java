@@ -0,0 +1,111 @@
+package ru.turbo.goose.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Truecolor 8-bit PNG without filtering, deflated at BEST_SPEED into IDAT chunks as rows arrive.
+// The scanline and chunk buffers are leased from the pool until close().
+public class PngImageEncoder implements ImageEncoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte COLOR_TYPE_RGB = 2;
+    private final OutputStream out;
+    private final int rowStride;
+    private final BufferPool.Lease scanlineBuffer;
+    private final BufferPool.Lease chunkBuffer;
+    private final byte[] scanline;
+    private final byte[] chunk;
+    private final Deflater deflater;
+    private int chunkLength;
+    private boolean closed;
+
+    public PngImageEncoder(int width, int height, OutputStream out, BufferPool bufferPool) throws IOException {
+        this.out = out;
+        rowStride = width * BmpHeader.BYTES_PER_PIXEL;
+        out.write(SIGNATURE);
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height).put((byte) 8).put(COLOR_TYPE_RGB).put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk("IHDR", header.array(), header.position());
+        // taken once nothing can fail any more, close() is all that releases them
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        scanlineBuffer = bufferPool.acquire(rowStride + 1);
+        chunkBuffer = bufferPool.acquire(CHUNK_SIZE);
+        scanline = scanlineBuffer.array();
+        // filter type None
+        scanline[0] = 0;
+        chunk = chunkBuffer.array();
+    }
+
+    @Override
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return false;
+    }
+
+    @Override
+    public void writeRows(byte[] rows, int count) throws IOException {
+        for (int row = 0; row < count; row++) {
+            int offset = row * rowStride;
+            for (int i = 0; i < rowStride; i += BmpHeader.BYTES_PER_PIXEL) {
+                scanline[i + 1] = rows[offset + i + 2];
+                scanline[i + 2] = rows[offset + i + 1];
+                scanline[i + 3] = rows[offset + i];
+            }
+            deflater.setInput(scanline, 0, rowStride + 1);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (chunkLength > 0) {
+            writeChunk("IDAT", chunk, chunkLength);
+        }
+        writeChunk("IEND", chunk, 0);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        deflater.end();
+        scanlineBuffer.close();
+        chunkBuffer.close();
+    }
+
+    private void deflate() throws IOException {
+        chunkLength += deflater.deflate(chunk, chunkLength, CHUNK_SIZE - chunkLength);
+        if (chunkLength == CHUNK_SIZE) {
+            writeChunk("IDAT", chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        ByteBuffer prefix = ByteBuffer.allocate(8).putInt(length).put(typeBytes);
+        out.write(prefix.array());
+        out.write(data, 0, length);
+        out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+}
@@ -0,0 +1,38 @@
+package ru.turbo.goose.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class VirtualThreadsConfigTest {
+    private static final int VIRTUAL_THREADS_VERSION = 21;
+
+    @Test
+    public void whenRunningBeforeJava21ThenCustomizerFailsWithClearError() {
+        assumeTrue(Runtime.version().feature() < VIRTUAL_THREADS_VERSION);
+        VirtualThreadsConfig config = new VirtualThreadsConfig();
+        IllegalStateException exc = assertThrows(IllegalStateException.class, config::virtualThreadsCustomizer);
+        assertThat(exc.getMessage(), containsString("chartographer.virtual-threads.enabled requires Java 21"));
+        assertThat(exc.getCause(), instanceOf(NoSuchMethodException.class));
+        config.shutdown();
+    }
+
+    @Test
+    public void whenRunningOnJava21ThenTasksRunOnVirtualThreadsUntilShutdown() throws Exception {
+        assumeTrue(Runtime.version().feature() >= VIRTUAL_THREADS_VERSION);
+        ExecutorService executor = VirtualThreadsConfig.newVirtualThreadPerTaskExecutor();
+        Future<Object> virtual = executor.submit(() -> Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+        assertThat(virtual.get(10, TimeUnit.SECONDS), is(true));
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+    }
+}
@@ -0,0 +1,156 @@
+package ru.turbo.goose.controllers;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.context.request.WebRequest;
+import ru.turbo.goose.exceptions.ServiceException;
+import ru.turbo.goose.services.ChartaService;
+import ru.turbo.goose.utils.ImageFormat;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ChartaControllerTest {
+    static final byte[] SEGMENT = "pixels of a segment".getBytes();
+
+    @Mock
+    ChartaService service;
+    @Mock
+    WebRequest request;
+    @Mock
+    HttpServletResponse response;
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final List<TrackedDeflater> deflaters = new ArrayList<>();
+    ChartaController controller;
+
+    static class TrackedDeflater extends Deflater {
+        boolean ended;
+
+        TrackedDeflater(boolean nowrap) {
+            super(BEST_SPEED, nowrap);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+            super.end();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException, ServiceException {
+        controller = new ChartaController(service) {
+            @Override
+            Deflater newDeflater(boolean nowrap) {
+                TrackedDeflater deflater = new TrackedDeflater(nowrap);
+                deflaters.add(deflater);
+                return deflater;
+            }
+        };
+        when(service.getSegmentTag(eq(1), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), any()))
+                .thenReturn("tag");
+        when(request.checkNotModified(anyString())).thenReturn(false);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+    }
+
+    void get(String acceptEncoding) {
+        controller.get(1, 0, 0, 10, 10, 0, null, acceptEncoding, request, response);
+    }
+
+    void writeSegment() throws ServiceException {
+        writeSegment(ImageFormat.BMP);
+    }
+
+    void writeSegment(ImageFormat format) throws ServiceException {
+        doAnswer(invocation -> {
+            invocation.getArgument(7, OutputStream.class).write(SEGMENT);
+            return null;
+        }).when(service).getSegment(eq(1), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), eq(format),
+                                    any(OutputStream.class));
+    }
+
+    @Test
+    public void whenGzipIsAcceptedThenBodyIsGzippedAndDeflaterIsReleased() throws IOException, ServiceException {
+        writeSegment();
+        get("gzip");
+        assertThat(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())).readAllBytes(), is(SEGMENT));
+        assertThat(deflaters.size(), is(1));
+        assertThat(deflaters.get(0).ended, is(true));
+    }
+
+    @Test
+    public void whenDeflateIsAcceptedThenBodyIsDeflatedAndDeflaterIsReleased() throws IOException, ServiceException {
+        writeSegment();
+        get("deflate");
+        assertThat(new InflaterInputStream(new ByteArrayInputStream(body.toByteArray())).readAllBytes(), is(SEGMENT));
+        assertThat(deflaters.size(), is(1));
+        assertThat(deflaters.get(0).ended, is(true));
+    }
+
+    @Test
+    public void whenRenderingFailsThenDeflaterIsStillReleased() throws ServiceException {
+        doAnswer(invocation -> {
+            invocation.getArgument(7, OutputStream.class).write(SEGMENT);
+            throw new ServiceException("Disk is gone");
+        }).when(service).getSegment(eq(1), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), eq(ImageFormat.BMP),
+                                    any(OutputStream.class));
+        get("gzip");
+        verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        assertThat(deflaters.size(), is(1));
+        assertThat(deflaters.get(0).ended, is(true));
+    }
+
+    @Test
+    public void whenPngIsRefusedWithZeroQualityThenWildcardGetsBmp() throws ServiceException {
+        writeSegment(ImageFormat.BMP);
+        controller.get(1, 0, 0, 10, 10, 0, "image/png;q=0, */*", null, request, response);
+        verify(response).setContentType("image/bmp");
+        assertThat(body.toByteArray(), is(SEGMENT));
+    }
+
+    @Test
+    public void whenPngIsPreferredThenPngIsReturned() throws ServiceException {
+        writeSegment(ImageFormat.PNG);
+        controller.get(1, 0, 0, 10, 10, 0, "image/bmp;q=0.5, image/png", null, request, response);
+        verify(response).setContentType("image/png");
+        assertThat(body.toByteArray(), is(SEGMENT));
+    }
+}
@@ -0,0 +1,79 @@
+package ru.turbo.goose.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChartaLockManagerTest {
+    final int id = 1;
+    final ChartaLockManager manager = new ChartaLockManager();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    Future<Boolean> lockInBackground(Runnable lock) {
+        return executor.submit(() -> {
+            lock.run();
+            return true;
+        });
+    }
+
+    @Test
+    public void whenReadingSameRowsThenDoNotBlock() throws Exception {
+        try (ChartaLockManager.RowLock lock = manager.lockRowsForRead(id, 0, 500)) {
+            Future<Boolean> reader = lockInBackground(() -> manager.lockRowsForRead(id, 100, 200).close());
+            assertThat(reader.get(5, TimeUnit.SECONDS), is(true));
+        }
+    }
+
+    @Test
+    public void whenWritingDisjointBandsThenDoNotBlock() throws Exception {
+        try (ChartaLockManager.RowLock lock = manager.lockRowsForWrite(id, 0, ChartaLockManager.BAND_HEIGHT)) {
+            Future<Boolean> writer = lockInBackground(() -> manager.lockRowsForWrite(
+                    id, ChartaLockManager.BAND_HEIGHT, 3 * ChartaLockManager.BAND_HEIGHT).close());
+            assertThat(writer.get(5, TimeUnit.SECONDS), is(true));
+        }
+    }
+
+    @Test
+    public void whenWritingOverlappingRowsThenWaitForPreviousWriter() throws Exception {
+        Future<Boolean> writer;
+        try (ChartaLockManager.RowLock lock = manager.lockRowsForWrite(id, 0, 10)) {
+            writer = lockInBackground(() -> manager.lockRowsForWrite(id, 5, 15).close());
+            assertThrows(TimeoutException.class, () -> writer.get(200, TimeUnit.MILLISECONDS));
+        }
+        assertThat(writer.get(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void whenReadingRowsBeingWrittenThenWaitForWriter() throws Exception {
+        Future<Boolean> reader;
+        try (ChartaLockManager.RowLock lock = manager.lockRowsForWrite(id, 0, 10)) {
+            reader = lockInBackground(() -> manager.lockRowsForRead(id, 0, 1).close());
+            assertThrows(TimeoutException.class, () -> reader.get(200, TimeUnit.MILLISECONDS));
+        }
+        assertThat(reader.get(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void whenChartaIsLockedThenRowLocksWait() throws Exception {
+        Future<Boolean> reader;
+        try (ChartaLockManager.RowLock lock = manager.lockCharta(id)) {
+            reader = lockInBackground(() -> manager.lockRowsForRead(id, 0, 1).close());
+            assertThrows(TimeoutException.class, () -> reader.get(200, TimeUnit.MILLISECONDS));
+        }
+        assertThat(reader.get(5, TimeUnit.SECONDS), is(true));
+    }
+}
@@ -1,68 +1,100 @@
 package ru.turbo.goose.services;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Answers;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import ru.turbo.goose.exceptions.ChartaNotExistsException;
 import ru.turbo.goose.exceptions.ImagesDoNotIntersectException;
 import ru.turbo.goose.exceptions.ServiceException;
 import ru.turbo.goose.exceptions.ValidationException;
+import ru.turbo.goose.storages.Charta;
 import ru.turbo.goose.storages.FileManager;
+import ru.turbo.goose.utils.BufferPool;
+import ru.turbo.goose.utils.ImageFormat;
 import ru.turbo.goose.utils.ImageFormatConverter;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
 class ChartaServiceImplTest {
     @TempDir
     File tempDir;
-    @Mock
+    @Mock(answer = Answers.CALLS_REAL_METHODS)
     FileManager fileManager;
+    @Spy
+    ChartaLockManager lockManager = new ChartaLockManager();
+    @Spy
+    RowBandExecutor executor = new RowBandExecutor(4, 1);
+    @Spy
+    SegmentCache segmentCache = new SegmentCache(0);
+    @Spy
+    BufferPool bufferPool = new BufferPool(64 * 1024 * 1024, true);
     @InjectMocks
     ChartaServiceImpl service;
 
     final int id = 1;
     final File pic = Path.of("src", "test", "resources", "test.bmp").toFile();
 
+    @AfterEach
+    void checkBuffers() {
+        bufferPool.checkLeaks();
+    }
+
     @Nested
     class CreateMethodTests {
-        File target;
-
-        @BeforeEach
-        void setUp() throws IOException {
-            target = Path.of(tempDir.getPath(), id + ".bmp").toFile();
-            target.createNewFile();
-        }
-
         @Test
-        public void whenCreatingLittleCharta() throws ServiceException, IOException {
+        public void whenCreatingLittleChartaThenDelegateToStorage() throws ServiceException, IOException {
             int w = 100;
             int h = 100;
-            when(fileManager.create()).thenReturn(id);
-            when(fileManager.get(id)).thenReturn(target);
+            when(fileManager.create(w, h)).thenReturn(id);
             int generatedId = service.createCharta(w, h);
             assertThat(generatedId, is(id));
-            BufferedImage img = ImageIO.read(target);
-            assertThat(img.getWidth(), is(w));
-            assertThat(img.getHeight(), is(h));
+            verify(fileManager).create(w, h);
         }
 
         @Test
@@ -121,6 +153,23 @@ class ChartaServiceImplTest {
             }
         }
 
+        @Test
+        public void whenGettingSegmentAsPngThenReturnSamePixelsAsBmp() throws IOException, ServiceException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(pic);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.getSegment(id, -1, -1, 5, 5, 0, ImageFormat.PNG, out);
+            BufferedImage png = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            BufferedImage bmp = ImageFormatConverter.byteArrayToBufferedBmpImage(service.getSegment(id, -1, -1, 5, 5));
+            assertThat(png.getWidth(), is(5));
+            assertThat(png.getHeight(), is(5));
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 5; j++) {
+                    assertThat(png.getRGB(i, j), is(bmp.getRGB(i, j)));
+                }
+            }
+        }
+
         @Test
         public void whenGettingSegmentThatFullyContainsChartaThenReturnFullCharta()
                 throws IOException, ServiceException {
@@ -181,6 +230,129 @@ class ChartaServiceImplTest {
             assertThrows(ValidationException.class, () -> service.getSegment(id, 1, 2, 3, -4));
             assertThrows(ValidationException.class, () -> service.getSegment(id, 1, 2, -3, -4));
         }
+
+        @Test
+        public void whenLevelOutOfRangeThenThrowException() throws IOException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(pic);
+            when(fileManager.getLevelCount(id)).thenReturn(7);
+            OutputStream out = new ByteArrayOutputStream();
+            assertThrows(ValidationException.class, () -> service.getSegment(id, 0, 0, 1, 1, -1, out));
+            assertThrows(ValidationException.class, () -> service.getSegment(id, 0, 0, 1, 1, 8, out));
+        }
+
+        @Test
+        public void whenStorageHasNoPyramidThenLevelIsRejectedAsInvalid() throws IOException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(pic);
+            OutputStream out = new ByteArrayOutputStream();
+            assertThrows(ValidationException.class, () -> service.getSegment(id, 0, 0, 1, 1, 1, out));
+        }
+    }
+
+    @Nested
+    class GetSegmentTagMethodTests {
+        @Test
+        public void whenGettingTagThenAskVersionOfCoveredLevelZeroRegion() throws IOException, ServiceException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(pic);
+            when(fileManager.getLevelCount(id)).thenReturn(7);
+            when(fileManager.getVersion(id, 20, 0, 80, 40)).thenReturn(7L, 8L);
+            String tag = service.getSegmentTag(id, 10, -5, 50, 25, 1, ImageFormat.BMP);
+            assertThat(service.getSegmentTag(id, 10, -5, 50, 25, 1, ImageFormat.BMP), is(not(tag)));
+            assertThat(service.getSegmentTag(id, 10, -5, 50, 25, 1, ImageFormat.PNG), is(not(tag)));
+        }
+
+        @Test
+        public void whenSegmentDoesNotIntersectThenThrowException() throws IOException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(pic);
+            assertThrows(ImagesDoNotIntersectException.class,
+                         () -> service.getSegmentTag(id, 100, 100, 5, 5, 0, ImageFormat.BMP));
+        }
+    }
+
+    @Nested
+    class GetSegmentsMethodTests {
+        File picCopy;
+
+        @BeforeEach
+        void setUp() throws IOException, ServiceException {
+            picCopy = Files.copy(pic.toPath(), tempDir.toPath().resolve("1.bmp")).toFile();
+            lenient().when(fileManager.exists(id)).thenReturn(true);
+            lenient().when(fileManager.get(id)).thenReturn(picCopy);
+            BufferedImage image = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+            Graphics2D gr = image.createGraphics();
+            gr.setColor(Color.RED);
+            gr.fillRect(0, 0, 20, 10);
+            gr.setColor(Color.BLUE);
+            gr.fillRect(0, 10, 20, 10);
+            service.updateSegment(id, 10, 10, 20, 20, ImageFormatConverter.bufferedBmpImageToByteArray(image));
+        }
+
+        @Test
+        public void whenGettingOverlappingRegionsThenEachFrameMatchesSingleSegment()
+                throws IOException, ServiceException {
+            List<Rectangle> regions = List.of(new Rectangle(5, 5, 20, 20), new Rectangle(15, 5, 20, 20),
+                                              new Rectangle(-3, 90, 10, 15), new Rectangle(12, 12, 3, 3),
+                                              new Rectangle(5, 5, 20, 20));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.getSegments(id, regions, 0, out);
+            DataInputStream frames = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+            List<Rectangle> returned = new ArrayList<>();
+            while (frames.available() > 0) {
+                Rectangle region = new Rectangle(frames.readInt(), frames.readInt(), frames.readInt(),
+                                                 frames.readInt());
+                byte[] data = new byte[frames.readInt()];
+                frames.readFully(data);
+                assertThat(data, is(service.getSegment(id, region.x, region.y, region.width, region.height)));
+                returned.add(region);
+            }
+            assertThat(returned, containsInAnyOrder(regions.toArray()));
+        }
+
+        @Test
+        public void whenChartaIsBottomUpThenRowsAreSweptUpwards() throws IOException, ServiceException {
+            List<Integer> rows = new ArrayList<>();
+            doAnswer(invocation -> {
+                Charta charta = spy((Charta) invocation.callRealMethod());
+                doAnswer(read -> {
+                    rows.add(read.getArgument(1));
+                    return read.callRealMethod();
+                }).when(charta).readRow(anyInt(), anyInt(), any());
+                return charta;
+            }).when(fileManager).openLevel(id, 0);
+            service.getSegments(id, List.of(new Rectangle(0, 0, 10, 10), new Rectangle(0, 40, 10, 10),
+                                            new Rectangle(5, 45, 10, 10)), 0, OutputStream.nullOutputStream());
+            assertThat(rows.size(), is(25));
+            for (int k = 1; k < rows.size(); k++) {
+                assertThat(rows.get(k) < rows.get(k - 1), is(true));
+            }
+        }
+
+        @Test
+        public void whenAnyRegionIsOutsideChartaThenThrowException() {
+            List<Rectangle> regions = List.of(new Rectangle(0, 0, 10, 10), new Rectangle(100, 0, 10, 10));
+            assertThrows(ImagesDoNotIntersectException.class,
+                         () -> service.getSegments(id, regions, 0, OutputStream.nullOutputStream()));
+        }
+
+        @Test
+        public void whenNoRegionsOrWrongSizeThenThrowException() {
+            assertThrows(ValidationException.class,
+                         () -> service.getSegments(id, List.of(), 0, OutputStream.nullOutputStream()));
+            assertThrows(ValidationException.class,
+                         () -> service.getSegments(id, List.of(new Rectangle(0, 0, 0, 5)), 0,
+                                                   OutputStream.nullOutputStream()));
+        }
+
+        @Test
+        public void whenWrongIdPassedThenThrowException() {
+            when(fileManager.exists(id)).thenReturn(false);
+            assertThrows(ChartaNotExistsException.class,
+                         () -> service.getSegments(id, List.of(new Rectangle(0, 0, 5, 5)), 0,
+                                                   OutputStream.nullOutputStream()));
+        }
     }
 
     @Nested
@@ -193,13 +365,37 @@ class ChartaServiceImplTest {
         }
 
         BufferedImage createRedRect(int w, int h) {
+            return createRect(Color.RED, w, h);
+        }
+
+        BufferedImage createRect(Color color, int w, int h) {
             BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
             Graphics2D gr = image.createGraphics();
-            gr.setColor(Color.RED);
+            gr.setColor(color);
             gr.fillRect(0, 0, w, h);
             return image;
         }
 
+        // a client that sends everything up to stallAt, then waits for resume before sending the rest
+        InputStream stallingClient(byte[] data, int stallAt, CountDownLatch stalled, CountDownLatch resume) {
+            return new InputStream() {
+                int position;
+
+                @Override
+                public int read() throws IOException {
+                    if (position == stallAt) {
+                        stalled.countDown();
+                        try {
+                            resume.await();
+                        } catch (InterruptedException exc) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    return position < data.length ? data[position++] & 0xFF : -1;
+                }
+            };
+        }
+
         @Test
         public void whenUpdatingSegmentThatFullyInsideChartaThenUpdateImage()
                 throws IOException, ServiceException {
@@ -224,6 +420,77 @@ class ChartaServiceImplTest {
             }
         }
 
+        @Test
+        public void whenUploadStallsThenConcurrentGetOfItsRowsIsNotBlocked() throws Exception {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            byte[] data = ImageFormatConverter.bufferedBmpImageToByteArray(createRedRect(10, 10));
+            CountDownLatch stalled = new CountDownLatch(1);
+            CountDownLatch resume = new CountDownLatch(1);
+            InputStream slowClient = stallingClient(data, data.length - 1, stalled, resume);
+            ExecutorService uploader = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> upload = uploader.submit(() -> {
+                    service.updateSegment(id, 0, 0, 10, 10, slowClient);
+                    return null;
+                });
+                assertThat(stalled.await(5, TimeUnit.SECONDS), is(true));
+                byte[] segment = assertTimeoutPreemptively(Duration.ofSeconds(5),
+                                                           () -> service.getSegment(id, 0, 0, 10, 10));
+                BufferedImage before = ImageFormatConverter.byteArrayToBufferedBmpImage(segment);
+                assertThat(new Color(before.getRGB(0, 0)), is(Color.GREEN));
+                resume.countDown();
+                upload.get(5, TimeUnit.SECONDS);
+            } finally {
+                resume.countDown();
+                uploader.shutdownNow();
+            }
+            BufferedImage result = ImageIO.read(picCopy);
+            assertThat(new Color(result.getRGB(0, 0)), is(Color.RED));
+            assertThat(new Color(result.getRGB(9, 9)), is(Color.RED));
+        }
+
+        @Test
+        public void whenOverlappingUploadsRunConcurrentlyThenOneFragmentWinsWhole() throws Exception {
+            int size = 400;
+            Files.write(picCopy.toPath(),
+                        ImageFormatConverter.bufferedBmpImageToByteArray(createRect(Color.GREEN, size, size)));
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            // small sequential chunks, so the fragment spans many of them
+            doReturn(false).when(executor).isParallel(anyLong());
+            byte[] red = ImageFormatConverter.bufferedBmpImageToByteArray(createRect(Color.RED, size, size));
+            byte[] blue = ImageFormatConverter.bufferedBmpImageToByteArray(createRect(Color.BLUE, size, size));
+            CountDownLatch stalled = new CountDownLatch(1);
+            CountDownLatch resume = new CountDownLatch(1);
+            ExecutorService uploader = Executors.newSingleThreadExecutor();
+            try {
+                // the red upload stalls halfway, long after its first rows could have been written
+                Future<?> slow = uploader.submit(() -> {
+                    service.updateSegment(id, 0, 0, size, size,
+                                          stallingClient(red, red.length / 2, stalled, resume));
+                    return null;
+                });
+                assertThat(stalled.await(5, TimeUnit.SECONDS), is(true));
+                service.updateSegment(id, 0, 0, size, size, new ByteArrayInputStream(blue));
+                resume.countDown();
+                slow.get(5, TimeUnit.SECONDS);
+            } finally {
+                resume.countDown();
+                uploader.shutdownNow();
+            }
+            BufferedImage result = ImageIO.read(picCopy);
+            int notRed = 0;
+            for (int j = 0; j < size; j++) {
+                for (int i = 0; i < size; i++) {
+                    if ((result.getRGB(i, j) & 0xFFFFFF) != 0xFF0000) {
+                        notRed++;
+                    }
+                }
+            }
+            assertThat(notRed, is(0));
+        }
+
         @Test
         public void whenUpdatingSegmentThatPartlyInsideChartaThenUpdateImage()
                 throws IOException, ServiceException {
@@ -271,6 +538,23 @@ class ChartaServiceImplTest {
             }
         }
 
+        @Test
+        public void whenSegmentIsCachedThenUpdateIntersectingItIsVisible() throws IOException, ServiceException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            ChartaService cached = new ChartaServiceImpl(fileManager, lockManager, executor,
+                                                         new SegmentCache(1024 * 1024), bufferPool);
+            byte[] before = cached.getSegment(id, 0, 0, 10, 10);
+            assertThat(cached.getSegment(id, 0, 0, 10, 10), is(before));
+            verify(fileManager, times(1)).openLevel(id, 0);
+            byte[] data = ImageFormatConverter.bufferedBmpImageToByteArray(createRedRect(5, 5));
+            cached.updateSegment(id, 8, 8, 5, 5, data);
+            byte[] after = cached.getSegment(id, 0, 0, 10, 10);
+            BufferedImage segment = ImageFormatConverter.byteArrayToBufferedBmpImage(after);
+            assertThat(new Color(segment.getRGB(9, 9)), is(Color.RED));
+            assertThat(new Color(segment.getRGB(7, 7)), is(Color.GREEN));
+        }
+
         @Test
         public void whenUpdatingSegmentThatFullyOutsideCartaThenThrowException()
                 throws IOException {
@@ -291,6 +575,15 @@ class ChartaServiceImplTest {
             }
         }
 
+        @Test
+        public void whenFragmentSizeDiffersFromDeclaredThenThrowException()
+                throws IOException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            byte[] data = ImageFormatConverter.bufferedBmpImageToByteArray(createRedRect(5, 5));
+            assertThrows(ValidationException.class, () -> service.updateSegment(id, 1, 1, 6, 5, data));
+        }
+
         @Test
         public void whenWrongIdPassedThenThrowException() {
             when(fileManager.exists(id)).thenReturn(false);
@@ -305,6 +598,81 @@ class ChartaServiceImplTest {
         }
     }
 
+    @Nested
+    class UpdateSegmentsMethodTests {
+        File picCopy;
+        ByteArrayOutputStream batch;
+
+        @BeforeEach
+        void setUp() throws IOException {
+            picCopy = Files.copy(pic.toPath(), tempDir.toPath(), StandardCopyOption.REPLACE_EXISTING).toFile();
+            batch = new ByteArrayOutputStream();
+        }
+
+        void addFragment(int x, int y, int w, int h, Color color) throws IOException {
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D gr = image.createGraphics();
+            gr.setColor(color);
+            gr.fillRect(0, 0, w, h);
+            byte[] data = ImageFormatConverter.bufferedBmpImageToByteArray(image);
+            DataOutputStream out = new DataOutputStream(batch);
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(w);
+            out.writeInt(h);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        @Test
+        public void whenFragmentsOverlapThenLastFragmentWins() throws IOException, ServiceException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            addFragment(10, 10, 20, 20, Color.RED);
+            addFragment(20, 20, 20, 20, Color.BLUE);
+            addFragment(-5, 15, 10, 10, Color.YELLOW);
+            service.updateSegments(id, new ByteArrayInputStream(batch.toByteArray()));
+            BufferedImage result = ImageIO.read(picCopy);
+            assertThat(new Color(result.getRGB(10, 10)), is(Color.RED));
+            assertThat(new Color(result.getRGB(29, 19)), is(Color.RED));
+            assertThat(new Color(result.getRGB(20, 20)), is(Color.BLUE));
+            assertThat(new Color(result.getRGB(39, 39)), is(Color.BLUE));
+            assertThat(new Color(result.getRGB(0, 15)), is(Color.YELLOW));
+            assertThat(new Color(result.getRGB(4, 24)), is(Color.YELLOW));
+            assertThat(new Color(result.getRGB(5, 15)), is(Color.GREEN));
+            assertThat(new Color(result.getRGB(40, 40)), is(Color.GREEN));
+            assertThat(new Color(result.getRGB(15, 35)), is(Color.GREEN));
+        }
+
+        @Test
+        public void whenAnyFragmentIsOutsideChartaThenThrowExceptionAndApplyNothing() throws IOException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            addFragment(10, 10, 20, 20, Color.RED);
+            addFragment(-10, -10, 5, 5, Color.BLUE);
+            assertThrows(ImagesDoNotIntersectException.class,
+                         () -> service.updateSegments(id, new ByteArrayInputStream(batch.toByteArray())));
+            BufferedImage result = ImageIO.read(picCopy);
+            assertThat(new Color(result.getRGB(10, 10)), is(Color.GREEN));
+        }
+
+        @Test
+        public void whenBatchIsTruncatedThenThrowException() throws IOException {
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+            addFragment(10, 10, 20, 20, Color.RED);
+            byte[] data = Arrays.copyOf(batch.toByteArray(), batch.size() - 10);
+            assertThrows(ValidationException.class, () -> service.updateSegments(id, new ByteArrayInputStream(data)));
+        }
+
+        @Test
+        public void whenWrongIdPassedThenThrowException() {
+            when(fileManager.exists(id)).thenReturn(false);
+            assertThrows(ChartaNotExistsException.class,
+                         () -> service.updateSegments(id, new ByteArrayInputStream(new byte[0])));
+        }
+    }
+
     @Nested
     class DeleteMethodTests {
         @Test
@@ -320,4 +688,78 @@ class ChartaServiceImplTest {
             assertThrows(ChartaNotExistsException.class, () -> service.deleteCharta(id));
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    class MetricsTests {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ChartaServiceImpl cachingService;
+
+        @BeforeEach
+        void setUp() {
+            Metrics.globalRegistry.add(registry);
+            cachingService = new ChartaServiceImpl(fileManager, lockManager, executor, new SegmentCache(1024 * 1024),
+                                                   bufferPool);
+        }
+
+        @AfterEach
+        void tearDown() {
+            Metrics.globalRegistry.remove(registry);
+            registry.close();
+        }
+
+        void stubCharta() throws IOException {
+            File picCopy = Files.copy(pic.toPath(), tempDir.toPath(), StandardCopyOption.REPLACE_EXISTING).toFile();
+            when(fileManager.exists(id)).thenReturn(true);
+            when(fileManager.get(id)).thenReturn(picCopy);
+        }
+
+        Timer stage(String operation, String stage) {
+            return registry.get("charta.segment.stage").tag("operation", operation).tag("stage", stage).timer();
+        }
+
+        DistributionSummary bytes(String operation) {
+            return registry.get("charta.segment.bytes").tag("operation", operation).summary();
+        }
+
+        double requests(String cache, String result) {
+            return registry.get("charta.cache.requests").tag("cache", cache).tag("result", result).counter().count();
+        }
+
+        @Test
+        public void whenRegistryIsAddedThenMetersOfEveryOperationAreRegistered() {
+            assertThat(registry.get("charta.segment.stage").timers().size(), is(8));
+            assertThat(registry.get("charta.segment.bytes").summaries().size(), is(4));
+            assertThat(registry.get("charta.cache.requests").tag("cache", "segment").counters().size(), is(2));
+            assertThat(registry.get("charta.cache.requests").tag("cache", "buffer").counters().size(), is(2));
+            assertThat(registry.get("charta.cache.evictions").tag("cache", "segment").counters().size(), is(1));
+            assertThat(registry.get("charta.lock.wait").timers().size(), greaterThan(0));
+        }
+
+        @Test
+        public void whenSegmentIsReadTwiceThenReadMetersAndCacheCountersMove() throws IOException, ServiceException {
+            stubCharta();
+            cachingService.getSegment(id, 0, 0, 10, 10);
+            cachingService.getSegment(id, 0, 0, 10, 10);
+            assertThat(stage("get", "metadata").count(), is(2L));
+            assertThat(stage("get", "transfer").count(), is(1L));
+            assertThat(bytes("get").count(), is(1L));
+            assertThat(bytes("get").totalAmount(), is(10.0 * 10 * 3));
+            assertThat(requests("segment", "miss"), is(1.0));
+            assertThat(requests("segment", "hit"), is(1.0));
+            assertThat(requests("buffer", "hit") + requests("buffer", "miss"), greaterThan(0.0));
+        }
+
+        @Test
+        public void whenSegmentIsWrittenThenUpdateMetersMove() throws IOException, ServiceException {
+            stubCharta();
+            BufferedImage image = new BufferedImage(5, 5, BufferedImage.TYPE_INT_RGB);
+            byte[] data = ImageFormatConverter.bufferedBmpImageToByteArray(image);
+            cachingService.updateSegment(id, 1, 1, 5, 5, data);
+            assertThat(stage("update", "metadata").count(), is(1L));
+            assertThat(stage("update", "decode").count(), is(1L));
+            assertThat(stage("update", "transfer").count(), is(1L));
+            assertThat(bytes("update").totalAmount(), is(5.0 * 5 * 3));
+            assertThat(requests("buffer", "hit") + requests("buffer", "miss"), greaterThan(0.0));
+        }
+    }
+}
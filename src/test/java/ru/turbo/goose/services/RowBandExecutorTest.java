@@ -0,0 +1,67 @@
+package ru.turbo.goose.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RowBandExecutorTest {
+    final RowBandExecutor executor = new RowBandExecutor(4, 1024);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void whenWorkIsLargeThenEveryRowIsProcessedOnceAcrossThreads() throws IOException {
+        int rows = 10_000;
+        AtomicIntegerArray visits = new AtomicIntegerArray(rows);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        executor.forEachBand(0, rows, RowBandExecutor.BAND_BYTES / 16, (from, to) -> {
+            threads.add(Thread.currentThread());
+            for (int i = from; i < to; i++) {
+                visits.incrementAndGet(i);
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < rows; i++) {
+            assertThat(visits.get(i), is(1));
+        }
+        assertThat(threads.size(), greaterThan(1));
+    }
+
+    @Test
+    public void whenWorkIsBelowThresholdThenRunOnCallingThread() throws IOException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        int[] range = new int[2];
+        executor.forEachBand(5, 10, 100, (from, to) -> {
+            threads.add(Thread.currentThread());
+            range[0] = from;
+            range[1] = to;
+        });
+        assertThat(threads, is(Set.of(Thread.currentThread())));
+        assertThat(range, is(new int[]{5, 10}));
+    }
+
+    @Test
+    public void whenBandFailsThenRethrowItsException() {
+        assertThrows(IOException.class, () -> executor.forEachBand(0, 1000, 1024, (from, to) -> {
+            if (from > 500) {
+                throw new IOException("Disk is gone");
+            }
+        }));
+    }
+}
@@ -0,0 +1,126 @@
+package ru.turbo.goose.services;
+
+import org.junit.jupiter.api.Test;
+import ru.turbo.goose.exceptions.ServiceException;
+import ru.turbo.goose.utils.ImageFormat;
+
+import java.awt.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SegmentCacheTest {
+    final SegmentCache cache = new SegmentCache(16 * 100);
+    final AtomicInteger renders = new AtomicInteger();
+
+    SegmentCache.Key key(int x) {
+        return new SegmentCache.Key(1, x, 0, 10, 10, 0, ImageFormat.BMP);
+    }
+
+    byte[] get(SegmentCache.Key key, long version, Rectangle region) throws ServiceException {
+        return cache.get(key, version, region, () -> {
+            renders.incrementAndGet();
+            return new byte[100];
+        });
+    }
+
+    @Test
+    public void whenWindowIsRequestedAgainThenServeItFromCache() throws ServiceException {
+        byte[] first = get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        assertThat(get(key(0), 1, new Rectangle(0, 0, 10, 10)) == first, is(true));
+        assertThat(renders.get(), is(1));
+        assertThat(cache.getCachedBytes(), is(100L));
+    }
+
+    @Test
+    public void whenVersionChangedThenRenderAgain() throws ServiceException {
+        get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        get(key(0), 2, new Rectangle(0, 0, 10, 10));
+        assertThat(renders.get(), is(2));
+        assertThat(cache.getCachedBytes(), is(100L));
+    }
+
+    @Test
+    public void whenUpdateIntersectsWindowThenOnlyThatWindowIsDropped() throws ServiceException {
+        get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        get(key(20), 1, new Rectangle(20, 0, 10, 10));
+        cache.invalidate(1, new Rectangle(5, 5, 10, 10));
+        assertThat(cache.getCachedBytes(), is(100L));
+        get(key(20), 1, new Rectangle(20, 0, 10, 10));
+        assertThat(renders.get(), is(2));
+        get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        assertThat(renders.get(), is(3));
+    }
+
+    @Test
+    public void whenChartaIsDeletedThenDropAllItsWindows() throws ServiceException {
+        get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        get(key(20), 1, new Rectangle(20, 0, 10, 10));
+        cache.invalidate(1);
+        assertThat(cache.getCachedBytes(), is(0L));
+    }
+
+    @Test
+    public void whenCapacityIsExceededThenEvictLeastRecentlyUsed() throws ServiceException {
+        for (int i = 0; i < 17; i++) {
+            get(key(i), 1, new Rectangle(i, 0, 10, 10));
+        }
+        assertThat(cache.getCachedBytes(), is(1600L));
+        get(key(16), 1, new Rectangle(16, 0, 10, 10));
+        assertThat(renders.get(), is(17));
+        get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        assertThat(renders.get(), is(18));
+    }
+
+    @Test
+    public void whenEntryIsTooLargeThenDoNotAcceptIt() {
+        assertThat(cache.accepts(100), is(true));
+        assertThat(cache.accepts(101), is(false));
+        assertThat(new SegmentCache(0).accepts(1), is(false));
+    }
+
+    @Test
+    public void whenRenderingFailsThenRethrowAndForgetEntry() throws ServiceException {
+        assertThrows(ServiceException.class, () -> cache.get(key(0), 1, new Rectangle(0, 0, 10, 10), () -> {
+            throw new ServiceException("Disk is gone");
+        }));
+        get(key(0), 1, new Rectangle(0, 0, 10, 10));
+        assertThat(renders.get(), is(1));
+    }
+
+    @Test
+    public void whenSameWindowIsRequestedConcurrentlyThenRenderItOnce() throws Exception {
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            Future<byte[]> first = threads.submit(() -> cache.get(key(0), 1, new Rectangle(0, 0, 10, 10), () -> {
+                renders.incrementAndGet();
+                rendering.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                return new byte[100];
+            }));
+            rendering.await();
+            Future<byte[]> second = threads.submit(() -> get(key(0), 1, new Rectangle(0, 0, 10, 10)));
+            Future<byte[]> third = threads.submit(() -> get(key(0), 1, new Rectangle(0, 0, 10, 10)));
+            release.countDown();
+            byte[] data = first.get(5, TimeUnit.SECONDS);
+            assertThat(second.get(5, TimeUnit.SECONDS) == data, is(true));
+            assertThat(third.get(5, TimeUnit.SECONDS) == data, is(true));
+            assertThat(renders.get(), is(1));
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
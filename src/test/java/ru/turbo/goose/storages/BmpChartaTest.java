@@ -0,0 +1,109 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.turbo.goose.exceptions.BmpFormatException;
+import ru.turbo.goose.utils.BmpHeader;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BmpChartaTest {
+    @TempDir
+    File tempDir;
+    Path picCopy;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        picCopy = Files.copy(Path.of("src", "test", "resources", "test.bmp"), tempDir.toPath().resolve("1.bmp"));
+    }
+
+    ByteBuffer redRow(int w) {
+        ByteBuffer row = ByteBuffer.allocate(w * 3);
+        for (int i = 0; i < w; i++) {
+            row.put((byte) 0).put((byte) 0).put((byte) 255);
+        }
+        return row.flip();
+    }
+
+    @Test
+    public void whenOpeningThenReadDimensionsFromHeader() throws IOException {
+        try (Charta charta = BmpCharta.open(picCopy)) {
+            assertThat(charta.getWidth(), is(100));
+            assertThat(charta.getHeight(), is(100));
+        }
+    }
+
+    @Test
+    public void whenCreatingLargeChartaThenFileIsSizedAndReadsBlack() throws IOException {
+        Path path = tempDir.toPath().resolve("2.bmp");
+        Files.createFile(path);
+        BmpCharta.create(path, 20000, 10000);
+        assertThat(Files.size(path), is(BmpHeader.bottomUp(20000, 10000).getFileSize()));
+        try (Charta charta = BmpCharta.open(path)) {
+            assertThat(charta.getWidth(), is(20000));
+            assertThat(charta.getHeight(), is(10000));
+            charta.writeRow(100, 5000, redRow(10));
+            ByteBuffer row = ByteBuffer.allocate(20000 * 3);
+            charta.readRow(0, 9999, row);
+            assertThat(row.array(), is(new byte[20000 * 3]));
+            row = ByteBuffer.allocate(12 * 3);
+            charta.readRow(99, 5000, row);
+            assertThat(Arrays.copyOfRange(row.array(), 0, 3), is(new byte[3]));
+            assertThat(Arrays.copyOfRange(row.array(), 3, 33), is(redRow(10).array()));
+            assertThat(Arrays.copyOfRange(row.array(), 33, 36), is(new byte[3]));
+        }
+    }
+
+    @Test
+    public void whenWritingRowThenOnlyThatSpanChanges() throws IOException {
+        try (Charta charta = BmpCharta.open(picCopy)) {
+            charta.writeRow(10, 0, redRow(5));
+            charta.writeRow(0, 99, redRow(100));
+        }
+        BufferedImage result = ImageIO.read(picCopy.toFile());
+        for (int i = 0; i < 100; i++) {
+            Color expectedTop = i >= 10 && i < 15 ? Color.RED : Color.GREEN;
+            assertThat(new Color(result.getRGB(i, 0)), is(expectedTop));
+            assertThat(new Color(result.getRGB(i, 50)), is(Color.GREEN));
+            assertThat(new Color(result.getRGB(i, 99)), is(Color.RED));
+        }
+    }
+
+    @Test
+    public void whenReadingRowThenReturnBgrPixels() throws IOException {
+        ByteBuffer row = ByteBuffer.allocate(4 * 3);
+        try (Charta charta = BmpCharta.open(picCopy)) {
+            charta.writeRow(0, 7, redRow(2));
+            charta.readRow(1, 7, row);
+        }
+        byte[] expected = {0, 0, (byte) 255, 0, (byte) 255, 0, 0, (byte) 255, 0, 0, (byte) 255, 0};
+        assertThat(row.array(), is(expected));
+    }
+
+    @Test
+    public void whenWritingOutsideOfChartaThenThrowException() throws IOException {
+        try (Charta charta = BmpCharta.open(picCopy)) {
+            assertThrows(IndexOutOfBoundsException.class, () -> charta.writeRow(98, 0, redRow(5)));
+            assertThrows(IndexOutOfBoundsException.class, () -> charta.writeRow(0, 100, redRow(5)));
+        }
+    }
+
+    @Test
+    public void whenFileIsNotBmpThenThrowException() throws IOException {
+        Path garbage = Files.write(tempDir.toPath().resolve("2.bmp"), new byte[100]);
+        assertThrows(BmpFormatException.class, () -> BmpCharta.open(garbage));
+    }
+}
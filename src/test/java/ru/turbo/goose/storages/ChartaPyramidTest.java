@@ -0,0 +1,130 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChartaPyramidTest {
+    @TempDir
+    File tempDir;
+    Path path;
+    ChartaMetadata metadata;
+    ChartaPyramid pyramid;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = Files.createFile(tempDir.toPath().resolve("1.bmp"));
+        BmpCharta.create(path, 5, 3);
+        metadata = ChartaMetadata.read(path);
+        pyramid = new ChartaPyramid(new ShardLayout(List.of(tempDir.toPath())), id -> BmpCharta.open(path, metadata));
+    }
+
+    void write(int x, int y, int... values) throws IOException {
+        ByteBuffer row = ByteBuffer.allocate(values.length * 3);
+        for (int value : values) {
+            row.put((byte) value).put((byte) value).put((byte) value);
+        }
+        TrackingCharta.ModificationListener listener = (fromX, fromY, width, height)
+                -> pyramid.markDirty(1, fromX, fromY, width, height);
+        try (Charta charta = new TrackingCharta(BmpCharta.open(path, metadata), listener)) {
+            charta.writeRow(x, y, row.flip());
+        }
+    }
+
+    int[] readLevel(int level, int y) throws IOException {
+        try (Charta charta = pyramid.open(1, level, metadata)) {
+            ByteBuffer row = ByteBuffer.allocate(charta.getWidth() * 3);
+            charta.readRow(0, y, row);
+            int[] values = new int[charta.getWidth()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = row.get(i * 3) & 0xFF;
+            }
+            return values;
+        }
+    }
+
+    @Test
+    public void whenReadingLevelThenPixelsAreAveragedIncludingOddEdges() throws IOException {
+        write(0, 0, 100, 200, 40, 0, 90);
+        write(0, 1, 0, 100, 40, 0, 30);
+        write(0, 2, 8, 8, 0, 0, 255);
+        assertThat(metadata.getLevelCount(), is(3));
+        assertThat(readLevel(1, 0), is(new int[]{100, 20, 60}));
+        assertThat(readLevel(1, 1), is(new int[]{8, 0, 255}));
+        assertThat(readLevel(2, 0), is(new int[]{32, 158}));
+        assertThat(readLevel(3, 0), is(new int[]{95}));
+    }
+
+    @Test
+    public void whenChartaIsUpdatedAfterBuildThenLevelsFollow() throws IOException {
+        assertThat(readLevel(1, 0), is(new int[]{0, 0, 0}));
+        assertThat(readLevel(2, 0), is(new int[]{0, 0}));
+        write(4, 2, 200);
+        assertThat(readLevel(1, 1), is(new int[]{0, 0, 200}));
+        assertThat(readLevel(2, 0), is(new int[]{0, 100}));
+        assertThat(readLevel(1, 0), is(new int[]{0, 0, 0}));
+    }
+
+    @Test
+    public void whenLevelIsOutOfRangeThenThrowException() {
+        assertThrows(IllegalArgumentException.class, () -> pyramid.open(1, 0, metadata));
+        assertThrows(IllegalArgumentException.class, () -> pyramid.open(1, 4, metadata));
+    }
+
+    @Test
+    public void whenDiscardingThenLevelFilesAreDeleted() throws IOException {
+        readLevel(2, 0);
+        assertThat(Files.list(tempDir.toPath().resolve(ChartaPyramid.DIR)).count(), is(2L));
+        pyramid.discard(1);
+        assertThat(Files.list(tempDir.toPath().resolve(ChartaPyramid.DIR)).count(), is(0L));
+    }
+
+    @Test
+    public void whenHandleIsSharedByThreadsThenEachChartaIsOpenedOnceAndRowsAreBuilt() throws Exception {
+        write(0, 0, 100, 200, 40, 0, 90);
+        write(0, 1, 0, 100, 40, 0, 30);
+        AtomicInteger opens = new AtomicInteger();
+        pyramid = new ChartaPyramid(new ShardLayout(List.of(tempDir.toPath())), id -> {
+            opens.incrementAndGet();
+            return BmpCharta.open(path, metadata);
+        });
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try (Charta charta = pyramid.open(1, 2, metadata)) {
+            List<Future<int[]>> rows = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                rows.add(executor.submit(() -> {
+                    start.await();
+                    ByteBuffer row = ByteBuffer.allocate(charta.getWidth() * 3);
+                    charta.readRow(0, 0, row);
+                    return new int[]{row.get(0) & 0xFF, row.get(3) & 0xFF};
+                }));
+            }
+            start.countDown();
+            for (Future<int[]> row : rows) {
+                assertThat(row.get(), is(new int[]{30, 30}));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(opens.get(), is(1));
+    }
+}
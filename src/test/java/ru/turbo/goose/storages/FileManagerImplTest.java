@@ -4,13 +4,18 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
-import ru.turbo.goose.utils.IdGenerator;
 import ru.turbo.goose.utils.PathHolder;
 
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -23,11 +28,16 @@ class FileManagerImplTest {
 
     @BeforeEach
     void setUp() {
-        IdGenerator.reset();
         PathHolder.setPath(null);
         manager = new FileManagerImpl(tempDir.getPath());
     }
 
+    long countFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(file -> StorageFormat.byFileName(file.getFileName().toString()) != null).count();
+        }
+    }
+
     @Nested
     class ConstructorTests {
         @Test
@@ -56,25 +66,131 @@ class FileManagerImplTest {
     class CreateMethodTests {
         @Test
         public void whenCreatingOneFile() throws IOException {
-            manager.create();
+            manager.create(10, 20);
             assertThat(tempDir.listFiles(), is(not(emptyArray())));
         }
 
+        @Test
+        public void whenCreatingThenWriteBlackBmpOfGivenSize() throws IOException {
+            int id = manager.create(100, 30);
+            BufferedImage image = ImageIO.read(manager.get(id));
+            assertThat(image.getWidth(), is(100));
+            assertThat(image.getHeight(), is(30));
+            for (int i = 0; i < 100; i++) {
+                for (int j = 0; j < 30; j++) {
+                    assertThat(new Color(image.getRGB(i, j)), is(Color.BLACK));
+                }
+            }
+        }
+
+        @Test
+        public void whenCreatingInTiledFormatThenWriteTiledCharta(@TempDir File temp) throws IOException {
+            FileManagerImpl tiledManager = new FileManagerImpl(temp.getPath(), StorageFormat.TILED, 0);
+            int id = tiledManager.create(20000, 50000);
+            File file = tiledManager.get(id);
+            assertThat(file.getName(), endsWith(StorageFormat.TILED.getExtension()));
+            assertThat(tiledManager.getMetadata(id).getWidth(), is(20000));
+            assertThat(new FileManagerImpl(temp.getPath()).exists(id), is(true));
+        }
+
         @Test
         public void whenCreatingTwoFiles() throws IOException {
-            int id1 = manager.create();
-            int id2 = manager.create();
+            int id1 = manager.create(10, 20);
+            int id2 = manager.create(10, 20);
             assertThat(id1, is(not(id2)));
-            assertThat(tempDir.listFiles(), is(arrayWithSize(2)));
+            assertThat(countFiles(tempDir.toPath()), is(2L));
         }
 
         @Test
-        public void whenCreatingTwoFilesWithIdGeneratorBeingReset() throws IOException {
-            int id1 = manager.create();
-            IdGenerator.reset();
-            int id2 = manager.create();
+        public void whenCreatingTwoFilesWithManagerBeingRestarted() throws IOException {
+            int id1 = manager.create(10, 20);
+            int id2 = new FileManagerImpl(tempDir.getPath()).create(10, 20);
             assertThat(id1, is(not(id2)));
-            assertThat(tempDir.listFiles(), is(arrayWithSize(2)));
+            assertThat(countFiles(tempDir.toPath()), is(2L));
+        }
+
+        @Test
+        public void whenChartaWasDeletedBeforeRestartThenDoNotReuseItsId() throws IOException {
+            manager.create(10, 20);
+            int deleted = manager.create(10, 20);
+            manager.delete(deleted);
+            assertThat(new FileManagerImpl(tempDir.getPath()).create(10, 20), is(greaterThan(deleted)));
+        }
+    }
+
+    @Nested
+    class ShardingTests {
+        @Test
+        public void whenSeveralRootsProvidedThenSpreadChartasOverThemInBuckets(@TempDir File first,
+                                                                               @TempDir File second)
+                throws IOException {
+            FileManagerImpl sharded = new FileManagerImpl(first.getPath() + File.pathSeparator + second.getPath());
+            for (int i = 0; i < 40; i++) {
+                int id = sharded.create(1, 1);
+                Path file = sharded.get(id).toPath();
+                assertThat(file.getParent().getParent().getParent().equals(first.toPath())
+                           || file.getParent().getParent().getParent().equals(second.toPath()), is(true));
+            }
+            assertThat(countFiles(first.toPath()), is(greaterThan(0L)));
+            assertThat(countFiles(second.toPath()), is(greaterThan(0L)));
+            assertThat(countFiles(first.toPath()) + countFiles(second.toPath()), is(40L));
+        }
+
+        @Test
+        public void whenRootIsAddedThenServeChartasInPlaceAndMoveOnlyReassignedOnesOnRebalance(@TempDir File first,
+                                                                                                @TempDir File second)
+                throws IOException {
+            FileManagerImpl single = new FileManagerImpl(first.getPath());
+            for (int i = 0; i < 200; i++) {
+                single.create(1, 1);
+            }
+            FileManagerImpl sharded = new FileManagerImpl(first.getPath() + File.pathSeparator + second.getPath());
+            assertThat(countFiles(second.toPath()), is(0L));
+            for (int id = 1; id <= 200; id++) {
+                assertThat(sharded.get(id).exists(), is(true));
+            }
+            sharded.rebalance();
+            long moved = countFiles(second.toPath());
+            assertThat(moved, is(greaterThan(0L)));
+            assertThat(moved, is(lessThan(200L)));
+            for (int id = 1; id <= 200; id++) {
+                assertThat(sharded.exists(id), is(true));
+                assertThat(sharded.get(id).exists(), is(true));
+                assertThat(sharded.getMetadata(id).getWidth(), is(1));
+            }
+        }
+
+        @Test
+        public void whenLevelIsBuiltThenItIsStoredOnTheRootOfItsCharta(@TempDir File first, @TempDir File second)
+                throws IOException {
+            FileManagerImpl sharded = new FileManagerImpl(first.getPath() + File.pathSeparator + second.getPath());
+            for (int i = 0; i < 10; i++) {
+                int id = sharded.create(4, 4);
+                try (Charta level = sharded.openLevel(id, 1)) {
+                    level.readRow(0, 0, ByteBuffer.allocate(6));
+                }
+                Path root = sharded.get(id).toPath().getParent().getParent().getParent();
+                assertThat(Files.exists(root.resolve(ChartaPyramid.DIR).resolve(id + "_1.bmp")), is(true));
+            }
+        }
+
+        @Test
+        public void whenMoveWasInterruptedThenRebalanceKeepsTheCompleteTargetAndCleansUp(@TempDir File first,
+                                                                                         @TempDir File second)
+                throws IOException {
+            FileManagerImpl sharded = new FileManagerImpl(first.getPath() + File.pathSeparator + second.getPath());
+            int id = sharded.create(3, 2);
+            Path target = sharded.get(id).toPath();
+            Path source = (target.startsWith(first.toPath()) ? second : first).toPath().resolve(id + ".bmp");
+            Files.writeString(source, "stale");
+            Path copy = target.resolveSibling(target.getFileName() + FileManagerImpl.MOVING_SUFFIX);
+            Files.writeString(copy, "torn");
+            FileManagerImpl restarted = new FileManagerImpl(first.getPath() + File.pathSeparator + second.getPath());
+            assertThat(restarted.get(id).toPath(), is(target));
+            restarted.rebalance();
+            assertThat(Files.exists(source), is(false));
+            assertThat(Files.exists(copy), is(false));
+            assertThat(restarted.getMetadata(id).getWidth(), is(3));
         }
     }
 
@@ -88,10 +204,30 @@ class FileManagerImplTest {
 
         @Test
         public void whenCallingExistsAfterCreationThenReturnTrue() throws IOException {
-            int id = manager.create();
+            int id = manager.create(10, 20);
             boolean created = manager.exists(id);
             assertThat(created, is(true));
         }
+
+        @Test
+        public void whenChartaFilesAlreadyInDirectoryThenIndexThem() throws IOException {
+            Path.of(tempDir.getPath(), "7.bmp").toFile().createNewFile();
+            Path.of(tempDir.getPath(), "notes.txt").toFile().createNewFile();
+            FileManagerImpl restarted = new FileManagerImpl(tempDir.getPath());
+            assertThat(restarted.exists(7), is(true));
+            assertThat(restarted.exists(8), is(false));
+            assertThat(restarted.get(7), is(Path.of(tempDir.getPath(), "7.bmp").toFile()));
+            restarted.rebalance();
+            assertThat(restarted.get(7).exists(), is(true));
+            assertThat(Path.of(tempDir.getPath(), "7.bmp").toFile().exists(), is(false));
+        }
+
+        @Test
+        public void whenCallingExistsAfterDeletionThenReturnFalse() throws IOException {
+            int id = manager.create(10, 20);
+            manager.delete(id);
+            assertThat(manager.exists(id), is(false));
+        }
     }
 
     @Nested
@@ -103,7 +239,7 @@ class FileManagerImplTest {
 
         @Test
         public void whenGettingAfterCreatingThenReturnFile() throws IOException {
-            int id = manager.create();
+            int id = manager.create(10, 20);
             File created = manager.get(id);
             assertThat(created.exists(), is(true));
             assertThat(created.isFile(), is(true));
@@ -111,6 +247,59 @@ class FileManagerImplTest {
         }
     }
 
+    @Nested
+    class GetMetadataMethodTests {
+        @Test
+        public void whenGettingMetadataAfterCreatingThenReturnLayout() throws IOException {
+            int id = manager.create(101, 30);
+            ChartaMetadata metadata = manager.getMetadata(id);
+            assertThat(metadata.getWidth(), is(101));
+            assertThat(metadata.getHeight(), is(30));
+            assertThat(metadata.getRowStride(), is(304));
+            assertThat(metadata.getDataOffset(), is(54));
+        }
+
+        @Test
+        public void whenGettingMetadataOfIndexedFileThenReadItsHeader() throws IOException {
+            Files.copy(Path.of("src", "test", "resources", "test.bmp"), tempDir.toPath().resolve("5.bmp"));
+            FileManagerImpl restarted = new FileManagerImpl(tempDir.getPath());
+            ChartaMetadata metadata = restarted.getMetadata(5);
+            assertThat(metadata.getWidth(), is(100));
+            assertThat(metadata.getHeight(), is(100));
+        }
+
+        @Test
+        public void whenWritingThroughChartaThenBumpVersion() throws IOException {
+            int id = manager.create(10, 10);
+            long version = manager.getMetadata(id).getVersion();
+            try (Charta charta = manager.open(id)) {
+                charta.writeRow(0, 0, ByteBuffer.allocate(3));
+            }
+            assertThat(manager.getMetadata(id).getVersion(), is(greaterThan(version)));
+        }
+
+        @Test
+        public void whenGettingMetadataWithoutCreatingThenThrowException() {
+            assertThrows(FileNotFoundException.class, () -> manager.getMetadata(1));
+        }
+    }
+
+    @Nested
+    class GetVersionMethodTests {
+        @Test
+        public void whenWritingThroughChartaThenOnlyCoveredTilesChangeVersion() throws IOException {
+            int id = manager.create(1000, 600);
+            long written = manager.getVersion(id, 0, 0, 100, 100);
+            long untouched = manager.getVersion(id, 600, 300, 100, 100);
+            try (Charta charta = manager.open(id)) {
+                charta.writeRow(10, 20, ByteBuffer.allocate(30));
+            }
+            assertThat(manager.getVersion(id, 0, 0, 100, 100), is(greaterThan(written)));
+            assertThat(manager.getVersion(id, 0, 0, 1000, 600), is(greaterThan(written)));
+            assertThat(manager.getVersion(id, 600, 300, 100, 100), is(untouched));
+        }
+    }
+
     @Nested
     class DeleteMethodTests {
         @Test
@@ -121,7 +310,7 @@ class FileManagerImplTest {
 
         @Test
         public void whenDeletingWithoutCreationThenDeleteFileAndReturnTrue() throws IOException {
-            int id = manager.create();
+            int id = manager.create(10, 20);
             File file = manager.get(id);
             assertThat(file.exists(), is(true));
             boolean deleted = manager.delete(id);
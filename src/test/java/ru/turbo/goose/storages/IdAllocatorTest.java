@@ -0,0 +1,75 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class IdAllocatorTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void whenAllocatingThenPersistEndOfCurrentBlock() throws IOException {
+        Path watermark = tempDir.resolve("ids");
+        IdAllocator ids = new IdAllocator(watermark, 1);
+        assertThat(Files.exists(watermark), is(false));
+        assertThat(ids.next(), is(1));
+        assertThat(Files.readString(watermark), is(String.valueOf(1 + IdAllocator.BLOCK_SIZE)));
+        for (int i = 2; i <= IdAllocator.BLOCK_SIZE + 1; i++) {
+            assertThat(ids.next(), is(i));
+        }
+        assertThat(Files.readString(watermark), is(String.valueOf(1 + 2 * IdAllocator.BLOCK_SIZE)));
+    }
+
+    @Test
+    public void whenRestartedThenContinueAfterReservedBlock() throws IOException {
+        Path watermark = tempDir.resolve("ids");
+        new IdAllocator(watermark, 1).next();
+        assertThat(new IdAllocator(watermark, 1).next(), is(1 + IdAllocator.BLOCK_SIZE));
+        assertThat(new IdAllocator(watermark, 5000).next(), is(5000));
+    }
+
+    @Test
+    public void whenWatermarkIsUnreadableThenStartFromMinimum() throws IOException {
+        Path watermark = Files.writeString(tempDir.resolve("ids"), "garbage");
+        assertThat(new IdAllocator(watermark, 42).next(), is(42));
+    }
+
+    @Test
+    public void whenAllocatingConcurrentlyThenIdsAreUnique() throws Exception {
+        IdAllocator ids = new IdAllocator(tempDir.resolve("ids"), 1);
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                tasks.add(threads.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        seen.add(ids.next());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertThat(seen.size(), is(40000));
+        assertThat(Long.parseLong(Files.readString(tempDir.resolve("ids"))) > 40000, is(true));
+    }
+}
@@ -0,0 +1,74 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MappedChartaCacheTest {
+    @TempDir
+    File tempDir;
+    Path first;
+    Path second;
+    long fileSize;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Path pic = Path.of("src", "test", "resources", "test.bmp");
+        first = Files.copy(pic, tempDir.toPath().resolve("1.bmp"));
+        second = Files.copy(pic, tempDir.toPath().resolve("2.bmp"));
+        fileSize = Files.size(pic);
+    }
+
+    @Test
+    public void whenWritingThroughMappingThenFileIsUpdated() throws IOException {
+        MappedChartaCache cache = new MappedChartaCache(fileSize * 2);
+        ByteBuffer red = ByteBuffer.wrap(new byte[]{0, 0, (byte) 255, 0, 0, (byte) 255});
+        try (Charta charta = cache.acquire(1, first, ChartaMetadata.read(first))) {
+            assertThat(charta.getWidth(), is(100));
+            assertThat(charta.getHeight(), is(100));
+            charta.writeRow(50, 20, red);
+        }
+        BufferedImage result = ImageIO.read(first.toFile());
+        assertThat(new Color(result.getRGB(49, 20)), is(Color.GREEN));
+        assertThat(new Color(result.getRGB(50, 20)), is(Color.RED));
+        assertThat(new Color(result.getRGB(51, 20)), is(Color.RED));
+        assertThat(new Color(result.getRGB(52, 20)), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenCapacityExceededThenEvictLeastRecentlyUsed() throws IOException {
+        MappedChartaCache cache = new MappedChartaCache(fileSize);
+        cache.acquire(1, first, ChartaMetadata.read(first)).close();
+        cache.acquire(2, second, ChartaMetadata.read(second)).close();
+        assertThat(cache.isCached(1), is(false));
+        assertThat(cache.isCached(2), is(true));
+        assertThat(cache.getMappedBytes(), is(fileSize));
+    }
+
+    @Test
+    public void whenInvalidatingWhileInUseThenLeaseStaysReadable() throws IOException {
+        MappedChartaCache cache = new MappedChartaCache(fileSize * 2);
+        Charta charta = cache.acquire(1, first, ChartaMetadata.read(first));
+        cache.invalidate(1);
+        assertThat(cache.isCached(1), is(false));
+        assertThat(cache.getMappedBytes(), is(0L));
+        ByteBuffer pixel = ByteBuffer.allocate(3);
+        charta.readRow(0, 0, pixel);
+        assertThat(pixel.array(), is(new byte[]{0, (byte) 255, 0}));
+        charta.close();
+        assertThrows(IllegalStateException.class, () -> charta.readRow(0, 0, ByteBuffer.allocate(3)));
+    }
+}
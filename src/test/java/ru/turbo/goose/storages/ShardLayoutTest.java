@@ -0,0 +1,57 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class ShardLayoutTest {
+    final Path a = Path.of("/data/a");
+    final Path b = Path.of("/data/b");
+    final Path c = Path.of("/data/c");
+    final Path d = Path.of("/data/d");
+
+    @Test
+    public void whenLocatingThenUseTwoHexBucketsUnderOwningRoot() {
+        ShardLayout layout = new ShardLayout(List.of(a, b));
+        Path file = layout.locate(17, StorageFormat.BMP);
+        assertThat(file.getFileName().toString(), is("17.bmp"));
+        assertThat(ShardLayout.isBucket(file.getParent().getFileName().toString()), is(true));
+        assertThat(ShardLayout.isBucket(file.getParent().getParent().getFileName().toString()), is(true));
+        assertThat(file.getParent().getParent().getParent(), is(layout.root(17)));
+    }
+
+    @Test
+    public void whenRootsAreListedInAnotherOrderThenPlacementIsTheSame() {
+        ShardLayout layout = new ShardLayout(List.of(a, b, c));
+        ShardLayout reordered = new ShardLayout(List.of(c, a, b));
+        for (int id = 1; id <= 1000; id++) {
+            assertThat(reordered.locate(id, StorageFormat.BMP), is(layout.locate(id, StorageFormat.BMP)));
+        }
+    }
+
+    @Test
+    public void whenRootIsAddedThenOnlyItsShareMovesAndOnlyToIt() {
+        ShardLayout before = new ShardLayout(List.of(a, b, c));
+        ShardLayout after = new ShardLayout(List.of(a, b, c, d));
+        Map<Path, Integer> counts = new HashMap<>();
+        int moved = 0;
+        int ids = 20000;
+        for (int id = 1; id <= ids; id++) {
+            counts.merge(before.root(id), 1, Integer::sum);
+            if (!after.root(id).equals(before.root(id))) {
+                assertThat(after.root(id), is(d));
+                moved++;
+            }
+        }
+        assertThat(moved, is(both(greaterThan(ids / 8)).and(lessThan(ids / 2))));
+        for (int count : counts.values()) {
+            assertThat(count, is(both(greaterThan(ids / 6)).and(lessThan(ids / 2))));
+        }
+    }
+}
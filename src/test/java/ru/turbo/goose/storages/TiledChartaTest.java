@@ -0,0 +1,99 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.turbo.goose.exceptions.BmpFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TiledChartaTest {
+    @TempDir
+    File tempDir;
+    Path path;
+    final int width = 600;
+    final int height = 300;
+    final long tileBytes = (long) TiledCharta.TILE_SIZE * TiledCharta.TILE_SIZE * 3;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = Files.createFile(tempDir.toPath().resolve("1.tiles"));
+        TiledCharta.create(path, width, height);
+    }
+
+    ByteBuffer filledRow(int w, byte value) {
+        byte[] bytes = new byte[w * 3];
+        Arrays.fill(bytes, value);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    public void whenCreatingThenOnlyHeaderAndIndexAreAllocated() throws IOException {
+        ChartaMetadata metadata = TiledCharta.readMetadata(path);
+        assertThat(metadata.getWidth(), is(width));
+        assertThat(metadata.getHeight(), is(height));
+        assertThat(metadata.getFormat(), is(StorageFormat.TILED));
+        assertThat(Files.size(path), is((long) metadata.getDataOffset()));
+        assertThat(Files.size(path), is(lessThanOrEqualTo(256L)));
+    }
+
+    @Test
+    public void whenReadingUnwrittenAreaThenReturnBlack() throws IOException {
+        ByteBuffer row = filledRow(width, (byte) 7);
+        try (Charta charta = TiledCharta.open(path)) {
+            charta.readRow(0, height - 1, row);
+        }
+        assertThat(row.array(), is(new byte[width * 3]));
+    }
+
+    @Test
+    public void whenWritingAcrossTilesThenReadBackAndAllocateOnlyTouchedTiles() throws IOException {
+        int x = TiledCharta.TILE_SIZE - 2;
+        int y = TiledCharta.TILE_SIZE + 1;
+        try (Charta charta = TiledCharta.open(path)) {
+            charta.writeRow(x, y, filledRow(4, (byte) 9));
+        }
+        ByteBuffer row = ByteBuffer.allocate(6 * 3);
+        try (Charta charta = TiledCharta.open(path)) {
+            charta.readRow(x - 1, y, row);
+        }
+        byte[] expected = new byte[6 * 3];
+        Arrays.fill(expected, 3, 15, (byte) 9);
+        assertThat(row.array(), is(expected));
+        ChartaMetadata metadata = TiledCharta.readMetadata(path);
+        assertThat(metadata.getTileIndex().getAllocatedBytes(), is(2 * tileBytes));
+    }
+
+    @Test
+    public void whenRewritingTileThenDoNotAllocateItAgain() throws IOException {
+        try (Charta charta = TiledCharta.open(path)) {
+            charta.writeRow(0, 0, filledRow(10, (byte) 1));
+            charta.writeRow(0, 5, filledRow(10, (byte) 2));
+        }
+        assertThat(TiledCharta.readMetadata(path).getTileIndex().getAllocatedBytes(), is(tileBytes));
+    }
+
+    @Test
+    public void whenWritingOutsideOfChartaThenThrowException() throws IOException {
+        try (Charta charta = TiledCharta.open(path)) {
+            assertThrows(IndexOutOfBoundsException.class, () -> charta.writeRow(width - 1, 0, filledRow(2, (byte) 1)));
+            assertThrows(IndexOutOfBoundsException.class, () -> charta.readRow(0, height, filledRow(1, (byte) 1)));
+        }
+    }
+
+    @Test
+    public void whenFileIsNotTiledChartaThenThrowException() throws IOException {
+        Path garbage = Files.write(tempDir.toPath().resolve("2.tiles"), new byte[100]);
+        assertThrows(BmpFormatException.class, () -> TiledCharta.open(garbage));
+    }
+}
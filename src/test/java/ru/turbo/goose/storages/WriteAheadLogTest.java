@@ -0,0 +1,243 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteAheadLogTest {
+    static final byte[] RED = {0, 0, (byte) 255};
+    static final byte[] BLUE = {(byte) 255, 0, 0};
+
+    @TempDir
+    File tempDir;
+    Path path;
+    Path walDir;
+    WriteBackBuffer buffer;
+    WriteAheadLog wal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = Files.copy(Path.of("src", "test", "resources", "test.bmp"), tempDir.toPath().resolve("1.bmp"));
+        walDir = tempDir.toPath().resolve("wal");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    // writes are applied to a write-back buffer that is never flushed, as if the process died before it was
+    WriteAheadLog crashingLog(long segmentSize) throws IOException {
+        buffer = new WriteBackBuffer(1 << 20, 60 * 60 * 1000, false, id -> BmpCharta.open(path));
+        return new WriteAheadLog(walDir, segmentSize, this::openBuffered);
+    }
+
+    Charta openBuffered(int id) throws IOException {
+        return buffer.wrap(id, BmpCharta.open(path), ChartaMetadata.read(path));
+    }
+
+    WriteAheadLog restartedLog() throws IOException {
+        return new WriteAheadLog(walDir, 1 << 20, id -> BmpCharta.open(path));
+    }
+
+    ByteBuffer pixels(byte[] color, int count) {
+        ByteBuffer pixels = ByteBuffer.allocate(count * 3);
+        for (int i = 0; i < count; i++) {
+            pixels.put(color);
+        }
+        return pixels.flip();
+    }
+
+    Color colorOnDisk(int x, int y) throws IOException {
+        BufferedImage image = ImageIO.read(path.toFile());
+        return new Color(image.getRGB(x, y));
+    }
+
+    long segmentCount() throws IOException {
+        try (Stream<Path> segments = Files.list(walDir)) {
+            return segments.count();
+        }
+    }
+
+    @Test
+    public void whenCommittedWritesAreLostThenReplayRestoresThem() throws IOException {
+        WriteAheadLog crashed = crashingLog(1 << 20);
+        try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+            charta.writeRow(10, 5, pixels(RED, 4));
+            charta.writeRow(12, 5, pixels(BLUE, 1));
+        }
+        assertThat(colorOnDisk(10, 5), is(Color.GREEN));
+        wal = restartedLog();
+        assertThat(colorOnDisk(10, 5), is(Color.RED));
+        assertThat(colorOnDisk(12, 5), is(Color.BLUE));
+        assertThat(colorOnDisk(13, 5), is(Color.RED));
+        assertThat(colorOnDisk(14, 5), is(Color.GREEN));
+        assertThat(segmentCount(), is(1L));
+    }
+
+    Path onlySegment() throws IOException {
+        try (Stream<Path> segments = Files.list(walDir)) {
+            return segments.findFirst().orElseThrow();
+        }
+    }
+
+    void truncate(Path segment, long bytes) throws IOException {
+        try (var channel = Files.newByteChannel(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    @Test
+    public void whenLastRecordIsTornThenEarlierFragmentsAreReplayed() throws IOException {
+        WriteAheadLog crashed = crashingLog(1 << 20);
+        try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+            charta.writeRow(0, 0, pixels(RED, 10));
+        }
+        try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+            charta.writeRow(0, 1, pixels(RED, 10));
+        }
+        truncate(onlySegment(), 1);
+        wal = restartedLog();
+        assertThat(colorOnDisk(9, 0), is(Color.RED));
+        assertThat(colorOnDisk(0, 1), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenFragmentHasNoCommitRecordThenNoneOfItsRowsIsReplayed() throws IOException {
+        WriteAheadLog crashed = crashingLog(1 << 20);
+        try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+            charta.writeRow(0, 0, pixels(RED, 10));
+        }
+        try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+            charta.writeRow(0, 1, pixels(BLUE, 10));
+            charta.writeRow(0, 2, pixels(BLUE, 10));
+        }
+        // only the commit record of the second fragment is cut, its rows are intact
+        truncate(onlySegment(), WriteAheadLog.HEADER_SIZE + Integer.BYTES);
+        wal = restartedLog();
+        assertThat(colorOnDisk(9, 0), is(Color.RED));
+        assertThat(colorOnDisk(0, 1), is(Color.GREEN));
+        assertThat(colorOnDisk(0, 2), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenSegmentIsReplayedTwiceThenResultIsTheSame() throws IOException {
+        WriteAheadLog crashed = crashingLog(1 << 20);
+        try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+            charta.writeRow(0, 3, pixels(RED, 20));
+            charta.writeRow(5, 3, pixels(BLUE, 5));
+        }
+        Path segment = onlySegment();
+        byte[] log = Files.readAllBytes(segment);
+        restartedLog().close();
+        byte[] once = Files.readAllBytes(path);
+        Files.write(segment, log);
+        wal = restartedLog();
+        assertThat(Files.readAllBytes(path), is(once));
+        assertThat(colorOnDisk(4, 3), is(Color.RED));
+        assertThat(colorOnDisk(5, 3), is(Color.BLUE));
+        assertThat(colorOnDisk(10, 3), is(Color.RED));
+    }
+
+    @Test
+    public void whenCheckpointingThenChartasAreForcedAndOldSegmentIsDeleted() throws IOException {
+        wal = crashingLog(1 << 20);
+        try (Charta charta = wal.wrap(1, openBuffered(1))) {
+            charta.writeRow(0, 99, pixels(RED, 100));
+        }
+        assertThat(colorOnDisk(0, 99), is(Color.GREEN));
+        wal.checkpoint();
+        assertThat(colorOnDisk(0, 99), is(Color.RED));
+        assertThat(colorOnDisk(99, 99), is(Color.RED));
+        assertThat(segmentCount(), is(1L));
+    }
+
+    @Test
+    public void whenWritersCommitConcurrentlyThenEveryRowIsReplayed() throws Exception {
+        WriteAheadLog crashed = crashingLog(1 << 20);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int y = 0; y < 50; y++) {
+                int row = y;
+                futures.add(executor.submit(() -> {
+                    try (Charta charta = crashed.wrap(1, openBuffered(1))) {
+                        charta.writeRow(0, row, pixels(RED, 100));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException exc) {
+            throw (Exception) exc.getCause();
+        } finally {
+            executor.shutdown();
+        }
+        wal = restartedLog();
+        for (int y = 0; y < 50; y++) {
+            assertThat(colorOnDisk(99, y), is(Color.RED));
+        }
+    }
+
+    @Test
+    public void whenProcessDiesBeforeCommitThenRowsNeverReachTheChartaAndAreNotReplayed() throws IOException {
+        WriteAheadLog crashed = crashingLog(1 << 20);
+        // written straight to the file, so anything applied before the commit would be visible on disk
+        Charta charta = crashed.wrap(1, BmpCharta.open(path));
+        charta.writeRow(0, 7, pixels(RED, 50));
+        charta.writeRow(0, 8, pixels(RED, 50));
+        assertThat(colorOnDisk(0, 7), is(Color.GREEN));
+        wal = restartedLog();
+        assertThat(colorOnDisk(0, 7), is(Color.GREEN));
+        assertThat(colorOnDisk(49, 8), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenCheckpointingThenSegmentIsKeptUntilOpenTransactionsAreApplied() throws Exception {
+        wal = crashingLog(1 << 20);
+        Charta charta = wal.wrap(1, BmpCharta.open(path));
+        charta.writeRow(0, 20, pixels(RED, 10));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> checkpoint = executor.submit(() -> {
+                wal.checkpoint();
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> checkpoint.get(200, TimeUnit.MILLISECONDS));
+            charta.close();
+            checkpoint.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(colorOnDisk(9, 20), is(Color.RED));
+        assertThat(segmentCount(), is(1L));
+    }
+}
@@ -0,0 +1,180 @@
+package ru.turbo.goose.storages;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+class WriteBackBufferTest {
+    static final byte[] GREEN = {0, (byte) 255, 0};
+    static final byte[] RED = {0, 0, (byte) 255};
+    static final byte[] BLACK = {0, 0, 0};
+
+    @TempDir
+    File tempDir;
+    Path path;
+    WriteBackBuffer buffer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = Files.copy(Path.of("src", "test", "resources", "test.bmp"), tempDir.toPath().resolve("1.bmp"));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    WriteBackBuffer newBuffer(long capacity) {
+        return new WriteBackBuffer(capacity, 60 * 60 * 1000, false, id -> BmpCharta.open(path));
+    }
+
+    Charta open() throws IOException {
+        return buffer.wrap(1, BmpCharta.open(path), ChartaMetadata.read(path));
+    }
+
+    ByteBuffer pixels(byte[] color, int count) {
+        ByteBuffer pixels = ByteBuffer.allocate(count * 3);
+        for (int i = 0; i < count; i++) {
+            pixels.put(color);
+        }
+        return pixels.flip();
+    }
+
+    Color colorOnDisk(int x, int y) throws IOException {
+        BufferedImage image = ImageIO.read(path.toFile());
+        return new Color(image.getRGB(x, y));
+    }
+
+    @Test
+    public void whenWritingThenReadsSeePendingPixelsBeforeFlush() throws IOException {
+        buffer = newBuffer(1 << 20);
+        try (Charta charta = open()) {
+            charta.writeRow(10, 5, pixels(RED, 4));
+        }
+        assertThat(colorOnDisk(10, 5), is(Color.GREEN));
+        try (Charta charta = open()) {
+            ByteBuffer row = ByteBuffer.allocate(6 * 3);
+            charta.readRow(9, 5, row);
+            assertThat(row.array(), is(concat(GREEN, RED, RED, RED, RED, GREEN)));
+        }
+        buffer.flush(1);
+        assertThat(buffer.getBufferedBytes(), is(0L));
+        assertThat(colorOnDisk(9, 5), is(Color.GREEN));
+        assertThat(colorOnDisk(10, 5), is(Color.RED));
+        assertThat(colorOnDisk(13, 5), is(Color.RED));
+        assertThat(colorOnDisk(14, 5), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenDisjointWritesHitOneRowThenGapKeepsStoredPixels() throws IOException {
+        buffer = newBuffer(1 << 20);
+        try (Charta charta = open()) {
+            charta.writeRow(40, 7, pixels(RED, 2));
+            charta.writeRow(10, 7, pixels(RED, 2));
+            charta.writeRow(11, 7, pixels(GREEN, 1));
+        }
+        buffer.flush(1);
+        assertThat(colorOnDisk(10, 7), is(Color.RED));
+        assertThat(colorOnDisk(11, 7), is(Color.GREEN));
+        assertThat(colorOnDisk(25, 7), is(Color.GREEN));
+        assertThat(colorOnDisk(41, 7), is(Color.RED));
+        assertThat(colorOnDisk(42, 7), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenCapacityExceededThenPagesAreFlushed() throws IOException {
+        buffer = newBuffer(1);
+        try (Charta charta = open()) {
+            charta.writeRow(0, 0, pixels(RED, 100));
+            assertThat(buffer.getBufferedBytes(), is(0L));
+        }
+        assertThat(colorOnDisk(99, 0), is(Color.RED));
+    }
+
+    @Test
+    public void whenCapacityExceededThenLeastRecentlyWrittenPageIsFlushed() throws IOException {
+        path = Files.createFile(tempDir.toPath().resolve("2.bmp"));
+        BmpCharta.create(path, 100, 200);
+        buffer = newBuffer(2L * WriteBackBuffer.PAGE_BYTES);
+        try (Charta charta = open()) {
+            charta.writeRow(0, 0, pixels(RED, 10));
+            charta.writeRow(0, 70, pixels(RED, 10));
+            charta.writeRow(0, 1, pixels(RED, 10));
+            charta.writeRow(0, 130, pixels(RED, 10));
+            assertThat(buffer.getBufferedBytes(), is(2L * WriteBackBuffer.PAGE_BYTES));
+        }
+        assertThat(colorOnDisk(0, 0), is(Color.BLACK));
+        assertThat(colorOnDisk(0, 70), is(Color.RED));
+        assertThat(colorOnDisk(0, 130), is(Color.BLACK));
+    }
+
+    @Test
+    public void whenPageBufferIsReusedThenItsOldPixelsDoNotShowThrough() throws IOException {
+        path = Files.createFile(tempDir.toPath().resolve("2.bmp"));
+        BmpCharta.create(path, 100, 200);
+        buffer = newBuffer(WriteBackBuffer.PAGE_BYTES);
+        try (Charta charta = open()) {
+            charta.writeRow(0, 6, pixels(RED, 100));
+            charta.writeRow(0, 64, pixels(RED, 1));
+            // the third page gets the buffer of the first one, which still holds its red row
+            charta.writeRow(1, 134, pixels(RED, 1));
+            charta.writeRow(3, 134, pixels(RED, 1));
+            ByteBuffer row = ByteBuffer.allocate(5 * 3);
+            charta.readRow(0, 134, row);
+            assertThat(row.array(), is(concat(BLACK, RED, BLACK, RED, BLACK)));
+        }
+        buffer.flush(1);
+        assertThat(colorOnDisk(0, 6), is(Color.RED));
+        assertThat(colorOnDisk(0, 134), is(Color.BLACK));
+        assertThat(colorOnDisk(1, 134), is(Color.RED));
+        assertThat(colorOnDisk(2, 134), is(Color.BLACK));
+    }
+
+    @Test
+    public void whenDiscardingThenPendingPixelsAreDropped() throws IOException {
+        buffer = newBuffer(1 << 20);
+        try (Charta charta = open()) {
+            charta.writeRow(0, 0, pixels(RED, 100));
+        }
+        assertThat(buffer.getBufferedBytes(), greaterThan(0L));
+        buffer.discard(1);
+        buffer.close();
+        assertThat(buffer.getBufferedBytes(), is(0L));
+        assertThat(colorOnDisk(0, 0), is(Color.GREEN));
+    }
+
+    @Test
+    public void whenClosingThenPendingPixelsAreFlushed() throws IOException {
+        buffer = newBuffer(1 << 20);
+        try (Charta charta = open()) {
+            charta.writeRow(0, 99, pixels(RED, 100));
+        }
+        buffer.close();
+        assertThat(colorOnDisk(0, 99), is(Color.RED));
+        assertThat(colorOnDisk(99, 99), is(Color.RED));
+    }
+
+    static byte[] concat(byte[]... colors) {
+        byte[] result = new byte[colors.length * 3];
+        for (int i = 0; i < colors.length; i++) {
+            System.arraycopy(colors[i], 0, result, i * 3, 3);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+package ru.turbo.goose.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BufferPoolTest {
+    final BufferPool pool = new BufferPool(64 * 1024, true);
+
+    @Test
+    public void whenAcquiringThenRoundUpToSizeClass() {
+        try (BufferPool.Lease small = pool.acquire(1);
+             BufferPool.Lease medium = pool.acquire(5000)) {
+            assertThat(small.array().length, is(1 << BufferPool.MIN_CLASS_SHIFT));
+            assertThat(medium.array().length, is(8192));
+        }
+    }
+
+    @Test
+    public void whenBufferIsReleasedThenReuseItForSameSizeClass() {
+        byte[] array;
+        try (BufferPool.Lease lease = pool.acquire(6000)) {
+            array = lease.array();
+        }
+        assertThat(pool.getFreeBytes(), is(8192L));
+        try (BufferPool.Lease lease = pool.acquire(8000)) {
+            assertThat(lease.array(), is(sameInstance(array)));
+        }
+    }
+
+    @Test
+    public void whenFreeListsAreFullThenDropReleasedBuffers() {
+        BufferPool.Lease first = pool.acquire(64 * 1024);
+        BufferPool.Lease second = pool.acquire(64 * 1024);
+        first.close();
+        second.close();
+        assertThat(pool.getFreeBytes(), is(64 * 1024L));
+    }
+
+    @Test
+    public void whenBufferIsAboveLargestClassThenDoNotPoolIt() {
+        BufferPool large = new BufferPool(1L << 30, false);
+        try (BufferPool.Lease lease = large.acquire((1 << BufferPool.MAX_CLASS_SHIFT) + 1)) {
+            assertThat(lease.array().length, is((1 << BufferPool.MAX_CLASS_SHIFT) + 1));
+        }
+        assertThat(large.getFreeBytes(), is(0L));
+    }
+
+    @Test
+    public void whenBufferIsNotReleasedThenReportLeak() {
+        BufferPool.Lease lease = pool.acquire(100);
+        IllegalStateException exc = assertThrows(IllegalStateException.class, pool::checkLeaks);
+        assertThat(exc.getCause().getMessage(), is("Buffer of 100 bytes leased here"));
+        lease.close();
+        pool.checkLeaks();
+    }
+
+    @Test
+    public void whenBufferIsReleasedTwiceThenThrowException() {
+        BufferPool.Lease lease = pool.acquire(100);
+        lease.close();
+        assertThrows(IllegalStateException.class, lease::close);
+    }
+}
@@ -0,0 +1,51 @@
+package ru.turbo.goose.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Builds and checks BMP bodies in tests. Converts without ImageIO: BMP rows and TYPE_3BYTE_BGR rasters
+// share the BGR pixel layout, so decoding reads every row straight into the raster
+// and encoding copies raster rows as they are
+public class ImageFormatConverter {
+    public static byte[] bufferedBmpImageToByteArray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BmpHeader header = BmpHeader.bottomUp(width, height);
+        byte[] bytes = new byte[Math.toIntExact(header.getFileSize())];
+        header.write(ByteBuffer.wrap(bytes));
+        int length = width * BmpHeader.BYTES_PER_PIXEL;
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && image.getRaster().getParent() == null) {
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, y * length, bytes, (int) header.rowOffset(y), length);
+            }
+            return bytes;
+        }
+        int[] rgb = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, rgb, 0, width);
+            int offset = (int) header.rowOffset(y);
+            for (int pixel : rgb) {
+                bytes[offset++] = (byte) pixel;
+                bytes[offset++] = (byte) (pixel >> 8);
+                bytes[offset++] = (byte) (pixel >> 16);
+            }
+        }
+        return bytes;
+    }
+
+    public static BufferedImage byteArrayToBufferedBmpImage(byte[] bytes) throws IOException {
+        BmpRowReader reader = new BmpRowReader(new ByteArrayInputStream(bytes));
+        BmpHeader header = reader.getHeader();
+        BufferedImage image = new BufferedImage(header.getWidth(), header.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int length = header.getWidth() * BmpHeader.BYTES_PER_PIXEL;
+        while (reader.hasNextRow()) {
+            reader.readRow(pixels, reader.nextRowIndex() * length);
+        }
+        return image;
+    }
+}
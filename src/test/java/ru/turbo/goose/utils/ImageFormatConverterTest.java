@@ -0,0 +1,89 @@
+package ru.turbo.goose.utils;
+
+import org.junit.jupiter.api.Test;
+import ru.turbo.goose.exceptions.BmpFormatException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ImageFormatConverterTest {
+    BufferedImage gradient(int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 40) << 16 | (y * 50) << 8 | (x + y));
+            }
+        }
+        return image;
+    }
+
+    void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        assertThat(actual.getWidth(), is(expected.getWidth()));
+        assertThat(actual.getHeight(), is(expected.getHeight()));
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y), is(expected.getRGB(x, y)));
+            }
+        }
+    }
+
+    byte[] bmp(int width, int height, boolean topDown) {
+        BmpHeader header = new BmpHeader(width, height, topDown, BmpHeader.SIZE);
+        byte[] bytes = new byte[(int) header.getFileSize()];
+        header.write(ByteBuffer.wrap(bytes));
+        for (int y = 0; y < height; y++) {
+            int offset = (int) header.rowOffset(y);
+            for (int x = 0; x < width; x++) {
+                bytes[offset + x * 3 + 2] = (byte) (y * 100 + x);
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void whenEncodingThenImageIoDecodesSamePixels() throws IOException {
+        for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR}) {
+            BufferedImage image = gradient(type, 5, 3);
+            byte[] bytes = ImageFormatConverter.bufferedBmpImageToByteArray(image);
+            assertSamePixels(ImageIO.read(new ByteArrayInputStream(bytes)), image);
+        }
+    }
+
+    @Test
+    public void whenEncodingSubimageThenTakeOnlyItsPixels() throws IOException {
+        BufferedImage image = gradient(BufferedImage.TYPE_3BYTE_BGR, 6, 4).getSubimage(1, 1, 3, 2);
+        byte[] bytes = ImageFormatConverter.bufferedBmpImageToByteArray(image);
+        assertSamePixels(ImageFormatConverter.byteArrayToBufferedBmpImage(bytes), image);
+    }
+
+    @Test
+    public void whenDecodingThenRowOrderFollowsHeader() throws IOException {
+        for (boolean topDown : new boolean[]{false, true}) {
+            BufferedImage image = ImageFormatConverter.byteArrayToBufferedBmpImage(bmp(3, 2, topDown));
+            assertThat(image.getRGB(0, 0) & 0xFFFFFF, is(0x000000));
+            assertThat(image.getRGB(2, 1) & 0xFFFFFF, is(102 << 16));
+        }
+    }
+
+    @Test
+    public void whenHeaderIsNotPlain24BitThenThrowException() {
+        byte[] bytes = bmp(3, 2, false);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(28, (short) 32);
+        assertThrows(BmpFormatException.class, () -> ImageFormatConverter.byteArrayToBufferedBmpImage(bytes));
+        header.putShort(28, (short) 24).putInt(30, 1);
+        assertThrows(BmpFormatException.class, () -> ImageFormatConverter.byteArrayToBufferedBmpImage(bytes));
+        header.putInt(30, 0).putShort(26, (short) 0);
+        assertThrows(BmpFormatException.class, () -> ImageFormatConverter.byteArrayToBufferedBmpImage(bytes));
+        header.putShort(26, (short) 1).putInt(18, Integer.MAX_VALUE);
+        assertThrows(BmpFormatException.class, () -> ImageFormatConverter.byteArrayToBufferedBmpImage(bytes));
+    }
+}
@@ -0,0 +1,66 @@
+package ru.turbo.goose.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PngImageEncoderTest {
+    final BufferPool bufferPool = new BufferPool(1 << 20, true);
+
+    @AfterEach
+    void checkBuffers() {
+        bufferPool.checkLeaks();
+    }
+
+    @Test
+    public void whenRowsAreWrittenInBatchesThenImageDecodesWithSamePixels() throws IOException {
+        int width = 300;
+        int height = 257;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageEncoder encoder = new PngImageEncoder(width, height, out, bufferPool);
+        byte[] rows = new byte[encoder.getRowStride() * 100];
+        for (int first = 0; first < height; first += 100) {
+            int count = Math.min(100, height - first);
+            for (int k = 0; k < count; k++) {
+                for (int i = 0; i < width; i++) {
+                    int offset = k * encoder.getRowStride() + i * BmpHeader.BYTES_PER_PIXEL;
+                    rows[offset] = (byte) i;
+                    rows[offset + 1] = (byte) (first + k);
+                    rows[offset + 2] = (byte) (i ^ (first + k));
+                }
+            }
+            encoder.writeRows(rows, count);
+        }
+        encoder.finish();
+        encoder.close();
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(image.getWidth(), is(width));
+        assertThat(image.getHeight(), is(height));
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = ((x ^ y) & 0xFF) << 16 | (y & 0xFF) << 8 | (x & 0xFF);
+                assertThat(image.getRGB(x, y) & 0xFFFFFF, is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void whenEncoderIsClosedUnfinishedThenItsDeflaterIsReleased() throws IOException {
+        ImageEncoder encoder = new PngImageEncoder(10, 10, OutputStream.nullOutputStream(), bufferPool);
+        encoder.writeRows(new byte[encoder.getRowStride()], 1);
+        encoder.close();
+        // a Deflater refuses any use once it was ended
+        assertThrows(NullPointerException.class, () -> encoder.writeRows(new byte[encoder.getRowStride()], 1));
+    }
+}